@@ -1,15 +1,26 @@
 package org.dsa.iot.haystack;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.dsa.iot.dslink.node.Node;
 import org.dsa.iot.dslink.node.NodeBuilder;
 import org.dsa.iot.dslink.node.Permission;
@@ -23,17 +34,33 @@ import org.dsa.iot.dslink.node.value.ValueType;
 import org.dsa.iot.dslink.util.Objects;
 import org.dsa.iot.dslink.util.StringUtils;
 import org.dsa.iot.dslink.util.handler.Handler;
+import org.dsa.iot.dslink.util.json.JsonObject;
 import org.dsa.iot.haystack.actions.Actions;
+import org.dsa.iot.haystack.actions.InvokeActions;
 import org.dsa.iot.haystack.actions.ServerActions;
 import org.dsa.iot.haystack.helpers.ConnectionHelper;
+import org.dsa.iot.haystack.helpers.EntityCache;
+import org.dsa.iot.haystack.helpers.HisCache;
+import org.dsa.iot.haystack.helpers.NavCache;
 import org.dsa.iot.haystack.helpers.NavHelper;
+import org.dsa.iot.haystack.helpers.NavPrefetcher;
+import org.dsa.iot.haystack.helpers.NavReaper;
+import org.dsa.iot.haystack.helpers.NavSnapshot;
+import org.dsa.iot.haystack.helpers.PathResolver;
+import org.dsa.iot.haystack.helpers.PollDispatcher;
+import org.dsa.iot.haystack.helpers.RefNavigator;
 import org.dsa.iot.haystack.helpers.StateHandler;
+import org.dsa.iot.haystack.helpers.SubscriptionJournal;
+import org.dsa.iot.haystack.helpers.ValueSnapshot;
+import org.projecthaystack.HDict;
+import org.projecthaystack.HDictBuilder;
 import org.projecthaystack.HGrid;
 import org.projecthaystack.HGridBuilder;
 import org.projecthaystack.HRef;
 import org.projecthaystack.HRow;
 import org.projecthaystack.HVal;
 import org.projecthaystack.HWatch;
+import org.projecthaystack.client.CallErrException;
 import org.projecthaystack.client.HClient;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -44,17 +71,63 @@ import org.slf4j.LoggerFactory;
 public class Haystack {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(Haystack.class);
+    private static final long WARM_EXPIRY = 10;
+    private static final long MIN_REOPEN_BACKOFF = TimeUnit.SECONDS.toMillis(5);
+    private static final long MAX_REOPEN_BACKOFF = TimeUnit.MINUTES.toMillis(5);
+    private static final String[] WATCH_GONE = new String[]{
+            "unknown watch",
+            "unknownwatch",
+            "watch expired",
+            "watch has expired",
+            "watch not found",
+            "invalid watch",
+            "watch is closed",
+            "watch closed"
+    };
+    public static final String NAV_MODE_NAV = "nav";
+    public static final String NAV_MODE_REFS = "refs";
+    private static final String DEFAULT_NODE_TAGS = "dis,kind,unit";
+    private static final int HIS_THREADS = 8;
+    private static final int TASK_THREADS = 8;
+    private static final AtomicInteger POOL_COUNT = new AtomicInteger();
 
     private final ConnectionHelper conn;
     private final NavHelper navHelper;
+    private final PathResolver pathResolver;
+    private final EntityCache entityCache;
+    private final InvokeActions.ActionCache actionCache;
+    private final NavCache navCache;
+    private final NavSnapshot navSnapshot;
+    private final NavPrefetcher prefetcher;
+    private final RefNavigator refNavigator;
+    private final NavReaper navReaper;
+    private final HisCache hisCache;
     private final Node node;
     private Set<HRef> pendingSubscribe;
     private Set<HRef> pendingUnsubscribe;
+    private final PollDispatcher pollDispatcher;
     private ScheduledFuture<?> pollFuture;
+    private ScheduledFuture<?> refreshFuture;
+    private ScheduledFuture<?> renewFuture;
     private final ScheduledThreadPoolExecutor stpe;
+    private final ThreadPoolExecutor hisExecutor;
+    private final ThreadPoolExecutor taskExecutor;
     private final Map<String, Node> subs;
+    private final SubscriptionJournal journal;
+    private final Set<String> warmSubs;
+    private final Map<String, HDict> warmValues;
+    private final ValueSnapshot snapshot;
+    private final Set<String> staleIds;
+    private ScheduledFuture<?> warmFuture;
+    private final AtomicInteger resubscribeRun = new AtomicInteger();
+    private final Object watchCreateLock = new Object();
+    private final Object reopenLock = new Object();
+    private long reopenBackoff;
+    private long nextReopen;
+    private volatile Set<String> nodeTags;
     private boolean updating;
     private boolean watchEnabled;
+    private volatile boolean evalUnsupported;
 
     public Haystack(final Node node) {
         {
@@ -95,39 +168,124 @@ public class Haystack {
             node.setConfig("maxConnections", new Value(5));
         }
 
+        if (node.getConfig("watchLease") == null) {
+            node.setConfig("watchLease", new Value(300));
+        }
+
+        if (node.getConfig("subChunkSize") == null) {
+            node.setConfig("subChunkSize", new Value(500));
+        }
+
+        if (node.getConfig("refreshRate") == null) {
+            node.setConfig("refreshRate", new Value(30));
+        }
+
+        if (node.getConfig("pollThreads") == null) {
+            node.setConfig("pollThreads", new Value(4));
+        }
+
+        if (node.getConfig("prefetchDepth") == null) {
+            node.setConfig("prefetchDepth", new Value(0));
+        }
+
+        if (node.getConfig("prefetchConcurrency") == null) {
+            node.setConfig("prefetchConcurrency", new Value(2));
+        }
+
+        if (node.getConfig("navMode") == null) {
+            node.setConfig("navMode", new Value(NAV_MODE_NAV));
+        }
+
+        if (node.getConfig("nodeBudget") == null) {
+            node.setConfig("nodeBudget", new Value(100000));
+        }
+
+        if (node.getConfig("compactTags") == null) {
+            node.setConfig("compactTags", new Value(false));
+        }
+
+        if (node.getConfig("nodeTags") == null) {
+            node.setConfig("nodeTags", new Value(DEFAULT_NODE_TAGS));
+        }
+
+        if (node.getConfig("hisPageHours") == null) {
+            node.setConfig("hisPageHours", new Value(24));
+        }
+
+        if (node.getConfig("hisParallelism") == null) {
+            node.setConfig("hisParallelism", new Value(2));
+        }
+
+        if (node.getConfig("hisCacheMB") == null) {
+            node.setConfig("hisCacheMB", new Value(100));
+        }
+
+        if (node.getConfig("rollupPushdown") == null) {
+            node.setConfig("rollupPushdown", new Value(false));
+        }
+
         this.stpe = Objects.createDaemonThreadPool();
+        this.hisExecutor = createExecutor("his", HIS_THREADS);
+        this.taskExecutor = createExecutor("task", TASK_THREADS);
         this.node = node;
+        this.pollDispatcher = new PollDispatcher(getPollThreads());
         this.subs = new ConcurrentHashMap<>();
+        String url = node.getConfig("url").getString();
+        this.journal = new SubscriptionJournal(Utils.getDataFile(node, "subs"), url, stpe);
+        this.warmSubs = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        this.warmSubs.addAll(journal.load());
+        this.warmValues = new ConcurrentHashMap<>();
+        this.snapshot = new ValueSnapshot(Utils.getDataFile(node, "lkv"), url, stpe);
+        this.staleIds = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
         this.navHelper = new NavHelper(this);
+        this.pathResolver = new PathResolver(this);
+        this.entityCache = new EntityCache(this);
+        this.actionCache = new InvokeActions.ActionCache();
+        this.navCache = new NavCache(node);
+        this.navSnapshot = new NavSnapshot(Utils.getDataFile(node, "nav"), url, navCache, stpe);
+        this.prefetcher = new NavPrefetcher(this);
+        this.refNavigator = new RefNavigator(this);
+        this.navReaper = new NavReaper(this);
+        this.hisCache = new HisCache(this, Utils.getDataFile(node, "his"), url);
         Utils.getStatusNode(node);
         Utils.initCommon(this, node);
         this.conn = new ConnectionHelper(this, new Handler<Void>() {
             @Override
             public void handle(Void event) {
                 watchEnabled = true;
-                if (!subs.isEmpty()) {
-                    // Restore haystack subscriptions
-                    for (Map.Entry<String, Node> entry : subs.entrySet()) {
-                        HRef id = HRef.make(entry.getKey());
-                        Node node = entry.getValue();
-                        subscribe(id, node);
-                    }
-                }
-
+                resubscribeAll();
                 setupPoll(getPollRate().getNumber().intValue());
             }
         }, new Handler<Void>() {
             @Override
             public void handle(Void event) {
                 watchEnabled = false;
-                pollFuture.cancel(false);
-                pollFuture = null;
-                synchronized (this) {
+                if (pollFuture != null) {
+                    pollFuture.cancel(false);
+                    pollFuture = null;
+                }
+                if (refreshFuture != null) {
+                    refreshFuture.cancel(false);
+                    refreshFuture = null;
+                }
+                if (renewFuture != null) {
+                    renewFuture.cancel(false);
+                    renewFuture = null;
+                }
+                synchronized (Haystack.this) {
                     pendingSubscribe = null;
                     pendingUnsubscribe = null;
                 }
             }
         });
+        NavCache.Entry root = navCache.peek(NavCache.key(null));
+        if (root != null) {
+            // Show the tree of the last run, listing reconciles it later
+            navHelper.iterateNavChildren(root.getGrid(), node, false);
+            Value lu = new Value(0);
+            lu.setSerializable(false);
+            node.setRoConfig("lu", lu);
+        }
         if (enabled.getBool()) {
             // Ensure subscriptions are subscribed
             node.setRoConfig("lu", new Value(0));
@@ -167,6 +325,21 @@ public class Haystack {
         LOGGER.info("Edit Server url={} user={} enabled={}", url, user, enabled);
         node.setRoConfig("lu", new Value(0));
         stop();
+        navCache.clear();
+        refNavigator.clear();
+        entityCache.clear();
+        actionCache.clear();
+        evalUnsupported = false;
+        // The data files of the old URL describe another server
+        journal.setUrl(url);
+        snapshot.setUrl(url);
+        navSnapshot.setUrl(url);
+        hisCache.setUrl(url);
+        warmSubs.clear();
+        warmValues.clear();
+        for (String id : subs.keySet()) {
+            journal.add(id);
+        }
         List<String> list = new ArrayList<>(node.getChildren().keySet());
         for (String name : list) {
             Node tmp = node.getChild(name, false);
@@ -185,6 +358,7 @@ public class Haystack {
                 }
             }
         }
+        navReaper.recount();
         if (!enabled) {
             Utils.getStatusNode(node).setValue(new Value("Disabled"));
         } else {
@@ -226,14 +400,92 @@ public class Haystack {
         return node;
     }
 
+    public EntityCache getEntityCache() {
+        return entityCache;
+    }
+
+    public InvokeActions.ActionCache getActionCache() {
+        return actionCache;
+    }
+
+    public NavCache getNavCache() {
+        return navCache;
+    }
+
+    public HisCache getHisCache() {
+        return hisCache;
+    }
+
+    public NavReaper getNavReaper() {
+        return navReaper;
+    }
+
+    public NavPrefetcher getNavPrefetcher() {
+        return prefetcher;
+    }
+
+    public PathResolver getPathResolver() {
+        return pathResolver;
+    }
+
     public Value getPollRate() {
         return node.getConfig("pollRate");
     }
 
+    /**
+     * @return Read timeout in seconds.
+     */
+    public int getReadTimeout() {
+        Value v = node.getConfig("read timeout");
+        if (v != null) {
+            Number n = v.getNumber();
+            if (n != null) {
+                return Math.max(1, n.intValue());
+            }
+        }
+        return 60;
+    }
+
     public ScheduledThreadPoolExecutor getStpe() {
         return stpe;
     }
 
+    /**
+     * @return Executor for history reads, which block while waiting on the
+     * server and are kept off the scheduler that polls the watch.
+     */
+    public ExecutorService getHisExecutor() {
+        return hisExecutor;
+    }
+
+    /**
+     * @return Executor for background work that blocks on the server, such
+     * as restoring subscriptions and prefetching the nav, kept off the
+     * scheduler that polls the watch.
+     */
+    public ExecutorService getTaskExecutor() {
+        return taskExecutor;
+    }
+
+    private static ThreadPoolExecutor createExecutor(final String name, int threads) {
+        final int pool = POOL_COUNT.incrementAndGet();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r);
+                t.setName("haystack-" + name + "-" + pool + "-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
     public int getMaxConnections() {
         Value v = node.getConfig("maxConnections");
         if (v != null) {
@@ -252,6 +504,292 @@ public class Haystack {
         node.setConfig("maxConnections", new Value(max));
     }
 
+    public int getPollThreads() {
+        Value v = node.getConfig("pollThreads");
+        if (v != null) {
+            Number n = v.getNumber();
+            if (n != null) {
+                return Math.max(1, n.intValue());
+            }
+        }
+        return 4;
+    }
+
+    public void setPollThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Poll threads must be >= 1: " + threads);
+        }
+        node.setConfig("pollThreads", new Value(threads));
+        pollDispatcher.setThreads(threads);
+    }
+
+    /**
+     * @return Minutes between full watch refreshes, 0 when disabled.
+     */
+    public int getRefreshRate() {
+        Value v = node.getConfig("refreshRate");
+        if (v != null) {
+            Number n = v.getNumber();
+            if (n != null) {
+                return Math.max(0, n.intValue());
+            }
+        }
+        return 30;
+    }
+
+    public void setRefreshRate(int minutes) {
+        if (minutes < 0) {
+            throw new IllegalArgumentException("Refresh rate must be >= 0: " + minutes);
+        }
+        node.setConfig("refreshRate", new Value(minutes));
+        if (pollFuture != null) {
+            setupRefresh(minutes);
+        }
+    }
+
+    /**
+     * @return Requested watch lease in seconds, 0 to use the server default.
+     */
+    public int getWatchLease() {
+        Value v = node.getConfig("watchLease");
+        if (v != null) {
+            Number n = v.getNumber();
+            if (n != null) {
+                return Math.max(0, n.intValue());
+            }
+        }
+        return 300;
+    }
+
+    public void setWatchLease(int seconds) {
+        if (seconds < 0) {
+            throw new IllegalArgumentException("Watch lease must be >= 0: " + seconds);
+        }
+        node.setConfig("watchLease", new Value(seconds));
+    }
+
+    public int getSubChunkSize() {
+        Value v = node.getConfig("subChunkSize");
+        if (v != null) {
+            Number n = v.getNumber();
+            if (n != null) {
+                return Math.max(1, n.intValue());
+            }
+        }
+        return 500;
+    }
+
+    public void setSubChunkSize(int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("Subscribe chunk size must be >= 1: " + size);
+        }
+        node.setConfig("subChunkSize", new Value(size));
+    }
+
+    /**
+     * @return Levels of the nav tree to prefetch, 0 when disabled.
+     */
+    public int getPrefetchDepth() {
+        Value v = node.getConfig("prefetchDepth");
+        if (v != null) {
+            Number n = v.getNumber();
+            if (n != null) {
+                return Math.max(0, n.intValue());
+            }
+        }
+        return 0;
+    }
+
+    public void setPrefetchDepth(int depth) {
+        if (depth < 0) {
+            throw new IllegalArgumentException("Prefetch depth must be >= 0: " + depth);
+        }
+        node.setConfig("prefetchDepth", new Value(depth));
+    }
+
+    public int getPrefetchConcurrency() {
+        Value v = node.getConfig("prefetchConcurrency");
+        if (v != null) {
+            Number n = v.getNumber();
+            if (n != null) {
+                return Math.max(1, n.intValue());
+            }
+        }
+        return 2;
+    }
+
+    public void setPrefetchConcurrency(int concurrency) {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("Prefetch concurrency must be >= 1: " + concurrency);
+        }
+        node.setConfig("prefetchConcurrency", new Value(concurrency));
+    }
+
+    /**
+     * @return {@link #NAV_MODE_NAV} to build the tree with nav calls or
+     * {@link #NAV_MODE_REFS} to build it from site and equip refs.
+     */
+    public String getNavMode() {
+        Value v = node.getConfig("navMode");
+        if (v != null && NAV_MODE_REFS.equals(v.getString())) {
+            return NAV_MODE_REFS;
+        }
+        return NAV_MODE_NAV;
+    }
+
+    public void setNavMode(String mode) {
+        if (!NAV_MODE_NAV.equals(mode) && !NAV_MODE_REFS.equals(mode)) {
+            throw new IllegalArgumentException("Unknown nav mode: " + mode);
+        }
+        node.setConfig("navMode", new Value(mode));
+    }
+
+    /**
+     * @return Max nodes under the server before closed folders are pruned
+     * early, 0 for no limit.
+     */
+    public int getNodeBudget() {
+        Value v = node.getConfig("nodeBudget");
+        if (v != null) {
+            Number n = v.getNumber();
+            if (n != null) {
+                return Math.max(0, n.intValue());
+            }
+        }
+        return 100000;
+    }
+
+    public void setNodeBudget(int budget) {
+        if (budget < 0) {
+            throw new IllegalArgumentException("Node budget must be >= 0: " + budget);
+        }
+        node.setConfig("nodeBudget", new Value(budget));
+    }
+
+    public boolean isCompactTags() {
+        Value v = node.getConfig("compactTags");
+        return v != null && v.getBool() != null && v.getBool();
+    }
+
+    public void setCompactTags(boolean compact) {
+        node.setConfig("compactTags", new Value(compact));
+    }
+
+    /**
+     * @return Tags that keep their own node in compact tag mode, in
+     * addition to curVal and his.
+     */
+    public Set<String> getNodeTags() {
+        Set<String> tags = nodeTags;
+        if (tags == null) {
+            Value v = node.getConfig("nodeTags");
+            String s = v != null ? v.getString() : DEFAULT_NODE_TAGS;
+            tags = new HashSet<>();
+            if (s != null) {
+                for (String tag : s.split(",")) {
+                    tag = tag.trim();
+                    if (!tag.isEmpty()) {
+                        tags.add(tag);
+                    }
+                }
+            }
+            nodeTags = tags;
+        }
+        return tags;
+    }
+
+    public void setNodeTags(String tags) {
+        node.setConfig("nodeTags", new Value(tags));
+        nodeTags = null;
+    }
+
+    /**
+     * @return Hours of history read per hisRead request, 0 to read the
+     * whole range at once.
+     */
+    public int getHisPageHours() {
+        Value v = node.getConfig("hisPageHours");
+        if (v != null) {
+            Number n = v.getNumber();
+            if (n != null) {
+                return Math.max(0, n.intValue());
+            }
+        }
+        return 24;
+    }
+
+    public void setHisPageHours(int hours) {
+        if (hours < 0) {
+            throw new IllegalArgumentException("History page hours must be >= 0: " + hours);
+        }
+        node.setConfig("hisPageHours", new Value(hours));
+    }
+
+    /**
+     * @return Max history pages read at the same time by a single query.
+     */
+    public int getHisParallelism() {
+        Value v = node.getConfig("hisParallelism");
+        if (v != null) {
+            Number n = v.getNumber();
+            if (n != null) {
+                return Math.max(1, n.intValue());
+            }
+        }
+        return 2;
+    }
+
+    public void setHisParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("History parallelism must be >= 1: " + parallelism);
+        }
+        node.setConfig("hisParallelism", new Value(parallelism));
+    }
+
+    /**
+     * @return Size limit of the history cache in bytes, 0 when disabled.
+     */
+    public long getHisCacheBytes() {
+        Value v = node.getConfig("hisCacheMB");
+        if (v != null) {
+            Number n = v.getNumber();
+            if (n != null) {
+                return Math.max(0, n.longValue()) * 1024 * 1024;
+            }
+        }
+        return 100L * 1024 * 1024;
+    }
+
+    public void setHisCacheMB(int mb) {
+        if (mb < 0) {
+            throw new IllegalArgumentException("History cache size must be >= 0: " + mb);
+        }
+        node.setConfig("hisCacheMB", new Value(mb));
+    }
+
+    /**
+     * @return Whether history rollups are evaluated on the server with Axon.
+     */
+    public boolean isRollupPushdown() {
+        Value v = node.getConfig("rollupPushdown");
+        return v != null && v.getBool() != null && v.getBool();
+    }
+
+    public void setRollupPushdown(boolean pushdown) {
+        node.setConfig("rollupPushdown", new Value(pushdown));
+    }
+
+    /**
+     * @return Whether the server rejected Axon since it was last edited.
+     */
+    public boolean isEvalUnsupported() {
+        return evalUnsupported;
+    }
+
+    public void setEvalUnsupported(boolean unsupported) {
+        evalUnsupported = unsupported;
+    }
+
     public static void init(Node superRoot) {
         NodeBuilder builder = Utils.getBuilder(superRoot, "addServer");
         builder.setDisplayName("Add Server");
@@ -332,6 +870,10 @@ public class Haystack {
         if (!isEnabled()) {
             return;
         }
+        if (NAV_MODE_REFS.equals(getNavMode())) {
+            refNavigator.nav(navId, onComplete);
+            return;
+        }
         HGrid grid = HGrid.EMPTY;
         if (navId != null) {
             HGridBuilder builder = new HGridBuilder();
@@ -357,18 +899,48 @@ public class Haystack {
     }
 
     public void stop() {
+        journal.flush();
+        snapshot.flush();
+        navSnapshot.flush();
+        prefetcher.stop();
         if (pollFuture != null) {
             try {
                 pollFuture.cancel(true);
             } catch (Exception ignored) {
             }
         }
+        if (refreshFuture != null) {
+            try {
+                refreshFuture.cancel(true);
+            } catch (Exception ignored) {
+            }
+        }
+        if (renewFuture != null) {
+            try {
+                renewFuture.cancel(true);
+            } catch (Exception ignored) {
+            }
+        }
 
         conn.close();
     }
 
     public synchronized void subscribe(final HRef id, Node node) {
-        subs.put(id.toString(), node);
+        String key = id.toString();
+        subs.put(key, node);
+        journal.add(key);
+        HDict warm = null;
+        if (warmSubs.remove(key)) {
+            warm = warmValues.remove(key);
+        }
+        if (warm != null) {
+            applyRow(warm, false);
+        } else {
+            HDict last = snapshot.getStale(key);
+            if (last != null) {
+                applySnapshot(key, node, last);
+            }
+        }
         if (!isEnabled() || !watchEnabled) {
             return;
         }
@@ -389,7 +961,13 @@ public class Haystack {
     }
 
     public synchronized void unsubscribe(final HRef id) {
-        subs.remove(id.toString());
+        String key = id.toString();
+        subs.remove(key);
+        warmSubs.remove(key);
+        warmValues.remove(key);
+        journal.remove(key);
+        snapshot.remove(key);
+        staleIds.remove(key);
         if (!isEnabled() || !watchEnabled) {
             return;
         }
@@ -409,13 +987,70 @@ public class Haystack {
         }
     }
 
-    void destroy() {
+    /**
+     * Stops the server and every background task and thread it owns.
+     */
+    public void destroy() {
         stop();
         stpe.shutdownNow();
+        hisExecutor.shutdownNow();
+        taskExecutor.shutdownNow();
+        journal.close();
+        snapshot.close();
+        navSnapshot.close();
+        navReaper.destroy();
+        pollDispatcher.destroy();
         navHelper.destroy();
     }
 
-    private void poll() {
+    /**
+     * Deletes the data files of the server once it has been removed.
+     */
+    public void deleteData() {
+        journal.delete();
+        snapshot.delete();
+        navSnapshot.delete();
+        hisCache.delete();
+    }
+
+    private void poll(boolean renew) {
+        boolean empty = subs.isEmpty() && warmSubs.isEmpty();
+        if (!isEnabled() || !watchEnabled || (empty && !renew)) {
+            return;
+        }
+
+        conn.getWatch(new StateHandler<HWatch>() {
+            @Override
+            public void handle(HWatch event) {
+                HGrid grid;
+                try {
+                    grid = event.pollChanges();
+                } catch (CallErrException e) {
+                    watchError(e);
+                    return;
+                }
+                conn.watchAccessed();
+                watchHealthy();
+                if (grid == null) {
+                    return;
+                }
+
+                pollDispatcher.dispatch(grid, new Handler<HRow>() {
+                    @Override
+                    public void handle(HRow row) {
+                        applyRow(row, false);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Reconciles the complete current state of the watch against the cached
+     * values. Only values that differ are published, and subscriptions the
+     * server no longer knows about are restored.
+     */
+    private void refresh() {
         if (!isEnabled() || !watchEnabled || subs.isEmpty()) {
             return;
         }
@@ -423,47 +1058,172 @@ public class Haystack {
         conn.getWatch(new StateHandler<HWatch>() {
             @Override
             public void handle(HWatch event) {
-                HGrid grid = event.pollChanges();
+                HGrid grid;
+                try {
+                    grid = event.pollRefresh();
+                } catch (CallErrException e) {
+                    watchError(e);
+                    return;
+                }
+                conn.watchAccessed();
+                watchHealthy();
                 if (grid == null) {
                     return;
                 }
 
+                Set<String> missing = new HashSet<>(subs.keySet());
                 Iterator<?> it = grid.iterator();
                 while (it.hasNext()) {
-                    HRow row = (HRow) it.next();
-                    Node node = subs.get(row.id().toString());
-                    if (node != null) {
-                        Map<String, Node> children = node.getChildren();
-
-                        Iterator<?> rowIt = row.iterator();
-                        while (rowIt.hasNext()) {
-                            Map.Entry entry = (Map.Entry) rowIt.next();
-                            String name = (String) entry.getKey();
-                            HVal val = (HVal) entry.getValue();
-                            Value value = Utils.hvalToVal(val);
-
-                            String encoded = StringUtils.encodeName(name);
-                            Node child = null;
-                            if (children != null) {
-                                child = children.get(encoded);
-                            }
-                            if (child != null) {
-                                child.setValueType(value.getType());
-                                child.setValue(value);
-                            } else {
-                                NodeBuilder b = Utils.getBuilder(node, encoded);
-                                b.setValueType(value.getType());
-                                b.setValue(value);
-                                Node n = b.build();
-                                n.setSerializable(false);
-                            }
-                        }
+                    HVal id = ((HRow) it.next()).get("id", false);
+                    if (id != null) {
+                        missing.remove(id.toString());
                     }
                 }
+
+                final AtomicInteger changed = new AtomicInteger();
+                pollDispatcher.dispatch(grid, new Handler<HRow>() {
+                    @Override
+                    public void handle(HRow row) {
+                        changed.addAndGet(applyRow(row, true));
+                    }
+                });
+
+                for (String id : missing) {
+                    Node n = subs.get(id);
+                    if (n != null) {
+                        subscribe(HRef.make(id), n);
+                    }
+                }
+                LOGGER.debug("Refreshed {}: {} rows, {} changed values, {} resubscribed",
+                             node.getName(), grid.numRows(), changed.get(), missing.size());
             }
         });
     }
 
+    /**
+     * Publishes the last known values from the snapshot for the tags that
+     * have no value yet. The node is marked stale until live data arrives.
+     */
+    private void applySnapshot(String id, Node node, HDict row) {
+        Map<String, Node> children = node.getChildren();
+        boolean applied = false;
+        boolean compact = isCompactTags();
+        JsonObject tags = compact ? new JsonObject() : null;
+        Iterator<?> it = row.iterator();
+        while (it.hasNext()) {
+            Map.Entry entry = (Map.Entry) it.next();
+            String name = (String) entry.getKey();
+            if (compact && !navHelper.isNodeTag(name)) {
+                tags.put(name, Utils.valToObject(Utils.hvalToVal((HVal) entry.getValue())));
+                continue;
+            }
+            String encoded = StringUtils.encodeName(name);
+            Node child = null;
+            if (children != null) {
+                child = children.get(encoded);
+            }
+            if (child != null && child.getValue() != null) {
+                continue;
+            }
+            Value value = Utils.hvalToVal((HVal) entry.getValue());
+            if (child != null) {
+                child.setValueType(value.getType());
+                child.setValue(value);
+            } else {
+                NodeBuilder b = Utils.getBuilder(node, encoded);
+                b.setValueType(value.getType());
+                b.setValue(value);
+                Node n = b.build();
+                n.setSerializable(false);
+                navReaper.added(1);
+            }
+            applied = true;
+        }
+        if (compact && node.getAttribute("tags") == null && navHelper.putTags(node, tags, false)) {
+            applied = true;
+        }
+        if (applied) {
+            Value stale = new Value(true);
+            stale.setSerializable(false);
+            node.setAttribute("stale", stale);
+            staleIds.add(id);
+        }
+    }
+
+    /**
+     * Publishes the values of the row that differ from the cached values.
+     *
+     * @param complete Whether the row is a complete record, in which case
+     *                 the tags it no longer has are removed. Poll rows may
+     *                 only hold the tags that changed.
+     * @return The number of values that were published.
+     */
+    private int applyRow(HDict row, boolean complete) {
+        // Watches report points that can't be resolved as rows without an id
+        HVal ref = row.get("id", false);
+        if (!(ref instanceof HRef)) {
+            return 0;
+        }
+        String id = ref.toString();
+        Node node = subs.get(id);
+        if (node == null) {
+            if (warmSubs.contains(id)) {
+                // Held until the node is rebuilt and subscribes
+                warmValues.put(id, new HDictBuilder().add(row).toDict());
+                snapshot.put(id, row);
+            }
+            return 0;
+        }
+        snapshot.put(id, row);
+        if (staleIds.remove(id)) {
+            node.removeAttribute("stale");
+        }
+        int changed = 0;
+        Map<String, Node> children = node.getChildren();
+        boolean compact = isCompactTags();
+        JsonObject tags = compact ? new JsonObject() : null;
+
+        Iterator<?> rowIt = row.iterator();
+        while (rowIt.hasNext()) {
+            Map.Entry entry = (Map.Entry) rowIt.next();
+            String name = (String) entry.getKey();
+            HVal val = (HVal) entry.getValue();
+            Value value = Utils.hvalToVal(val);
+            if (compact && !navHelper.isNodeTag(name)) {
+                tags.put(name, Utils.valToObject(value));
+                continue;
+            }
+
+            String encoded = StringUtils.encodeName(name);
+            Node child = null;
+            if (children != null) {
+                child = children.get(encoded);
+            }
+            if (child != null) {
+                if (Utils.isEqual(child.getValue(), value)) {
+                    continue;
+                }
+                child.setValueType(value.getType());
+                child.setValue(value);
+            } else {
+                NodeBuilder b = Utils.getBuilder(node, encoded);
+                b.setValueType(value.getType());
+                b.setValue(value);
+                Node n = b.build();
+                n.setSerializable(false);
+                navReaper.added(1);
+            }
+            changed++;
+        }
+        if (compact && navHelper.putTags(node, tags, complete)) {
+            changed++;
+        }
+        if (complete) {
+            navReaper.added(-navHelper.removeStaleTags(node, row, compact));
+        }
+        return changed;
+    }
+
     private void setupPoll(int time) {
         if (pollFuture != null) {
             pollFuture.cancel(false);
@@ -474,12 +1234,284 @@ public class Haystack {
             @Override
             public void run() {
                 try {
-                    poll();
+                    poll(false);
                 } catch (Exception e) {
                     LOGGER.error("", e);
                 }
             }
         }, time, time, TimeUnit.SECONDS);
+        setupRefresh(getRefreshRate());
+        setupRenew();
+    }
+
+    /**
+     * Keeps the watch lease alive when there's nothing to poll or the poll
+     * rate is too slow for the lease.
+     */
+    private void setupRenew() {
+        if (renewFuture != null) {
+            renewFuture.cancel(false);
+            renewFuture = null;
+        }
+        renewFuture = stpe.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    long lease = conn.getWatchLeaseMillis();
+                    if (lease <= 0) {
+                        return;
+                    }
+                    long idle = System.currentTimeMillis() - conn.getLastWatchAccess();
+                    if (idle >= lease / 2) {
+                        LOGGER.debug("Renewing watch lease of {}", node.getName());
+                        poll(true);
+                    }
+                } catch (Exception e) {
+                    LOGGER.error("", e);
+                }
+            }
+        }, 5, 5, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Handles an error of a watch call. When the server no longer knows the
+     * watch, only the watch is reopened, the connection is kept and all
+     * subscriptions are restored in chunks. Reopens back off until a poll
+     * succeeds again. Any other error is rethrown.
+     */
+    private void watchError(CallErrException e) {
+        if (!isWatchGone(e)) {
+            LOGGER.warn("Watch call of {} failed: {}", node.getName(), e.getMessage());
+            throw e;
+        }
+        long now = System.currentTimeMillis();
+        synchronized (reopenLock) {
+            if (now < nextReopen) {
+                LOGGER.debug("Watch of {} expired, reopening in {}ms",
+                             node.getName(), nextReopen - now);
+                return;
+            }
+            if (reopenBackoff == 0) {
+                reopenBackoff = MIN_REOPEN_BACKOFF;
+            } else {
+                reopenBackoff = Math.min(reopenBackoff * 2, MAX_REOPEN_BACKOFF);
+            }
+            nextReopen = now + reopenBackoff;
+        }
+        LOGGER.info("Watch of {} expired, reopening: {}", node.getName(), e.getMessage());
+        conn.reopenWatch();
+    }
+
+    private void watchHealthy() {
+        synchronized (reopenLock) {
+            reopenBackoff = 0;
+            nextReopen = 0;
+        }
+    }
+
+    /**
+     * @return Whether the error is the server reporting an unknown or
+     * expired watch.
+     */
+    private static boolean isWatchGone(CallErrException e) {
+        // Only the message, traces of other errors mention watches too
+        String s = e.getMessage();
+        if (s == null) {
+            return false;
+        }
+        s = s.toLowerCase();
+        for (String gone : WATCH_GONE) {
+            if (s.contains(gone)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void setupRefresh(int minutes) {
+        if (refreshFuture != null) {
+            refreshFuture.cancel(false);
+            refreshFuture = null;
+        }
+        if (minutes <= 0) {
+            return;
+        }
+
+        // Start at a random offset so servers don't all refresh at once
+        long period = TimeUnit.MINUTES.toSeconds(minutes);
+        long delay = period / 2 + ThreadLocalRandom.current().nextLong(period);
+        refreshFuture = stpe.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    refresh();
+                } catch (Exception e) {
+                    LOGGER.error("", e);
+                }
+            }
+        }, delay, period, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Restores every registered subscription on a newly opened watch. The
+     * registry is split into bounded watchSub chunks which, once the first
+     * chunk has created the watch on the server, are sent in parallel.
+     */
+    private void resubscribeAll() {
+        synchronized (this) {
+            // Everything is resubscribed on the new watch
+            pendingSubscribe = null;
+            pendingUnsubscribe = null;
+        }
+        final int run = resubscribeRun.incrementAndGet();
+        final List<HRef> ids = new ArrayList<>(subs.size() + warmSubs.size());
+        for (String id : subs.keySet()) {
+            ids.add(HRef.make(id));
+        }
+        for (String id : warmSubs) {
+            if (!subs.containsKey(id)) {
+                ids.add(HRef.make(id));
+            }
+        }
+        if (!warmSubs.isEmpty() && warmFuture == null) {
+            warmFuture = stpe.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    expireWarmSubs();
+                }
+            }, WARM_EXPIRY, TimeUnit.MINUTES);
+        }
+        if (ids.isEmpty()) {
+            return;
+        }
+        taskExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    subscribeChunks(run, ids);
+                } catch (Exception e) {
+                    LOGGER.error("Unable to restore subscriptions", e);
+                }
+            }
+        });
+    }
+
+    private void subscribeChunks(final int run, List<HRef> ids) {
+        final long start = System.currentTimeMillis();
+        final int total = ids.size();
+        final int size = getSubChunkSize();
+        final Queue<HRef[]> chunks = new ConcurrentLinkedQueue<>();
+        for (int i = 0; i < total; i += size) {
+            List<HRef> chunk = ids.subList(i, Math.min(total, i + size));
+            chunks.add(chunk.toArray(new HRef[chunk.size()]));
+        }
+        final Node status = Utils.getStatusNode(node);
+        final AtomicInteger done = new AtomicInteger();
+
+        // The first chunk creates the watch on the server
+        HRef[] first = chunks.poll();
+        if (!subscribeChunk(first)) {
+            return;
+        }
+        done.addAndGet(first.length);
+        if (chunks.isEmpty()) {
+            LOGGER.info("Restored {} subscriptions of {}", total, node.getName());
+            return;
+        }
+        status.setValue(new Value("Subscribing " + done.get() + "/" + total));
+
+        int workers = Math.min(chunks.size(), Math.max(1, getMaxConnections() - 1));
+        final AtomicInteger running = new AtomicInteger(workers);
+        for (int i = 0; i < workers; i++) {
+            taskExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        HRef[] chunk;
+                        while ((resubscribeRun.get() == run) && ((chunk = chunks.poll()) != null)) {
+                            if (!subscribeChunk(chunk)) {
+                                break;
+                            }
+                            int count = done.addAndGet(chunk.length);
+                            if (resubscribeRun.get() == run) {
+                                status.setValue(new Value("Subscribing " + count + "/" + total));
+                            }
+                        }
+                    } catch (Exception e) {
+                        LOGGER.error("Unable to restore subscriptions", e);
+                    } finally {
+                        if (running.decrementAndGet() == 0 && resubscribeRun.get() == run) {
+                            String s = status.getValue().getString();
+                            if (s != null && s.startsWith("Subscribing")) {
+                                status.setValue(new Value("Connected"));
+                            }
+                            LOGGER.info("Restored {}/{} subscriptions of {} in {}ms",
+                                        done.get(), total, node.getName(),
+                                        System.currentTimeMillis() - start);
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Drops the subscriptions restored from the journal that nothing has
+     * subscribed to again since startup.
+     */
+    private void expireWarmSubs() {
+        int count = 0;
+        for (String id : warmSubs) {
+            if (!subs.containsKey(id)) {
+                unsubscribe(HRef.make(id));
+                count++;
+            }
+        }
+        warmSubs.clear();
+        warmValues.clear();
+        if (count > 0) {
+            LOGGER.info("Dropped {} unused journaled subscriptions of {}", count, node.getName());
+        }
+    }
+
+    /**
+     * Subscribes the ids on the watch and publishes their current values.
+     *
+     * @return False if the watch wasn't available or has expired.
+     */
+    private boolean subscribeChunk(final HRef[] ids) {
+        final AtomicBoolean subscribed = new AtomicBoolean();
+        conn.getWatch(new StateHandler<HWatch>() {
+            @Override
+            public void handle(HWatch event) {
+                HGrid grid;
+                try {
+                    if (event.id() == null) {
+                        // Only one request may create the watch on the server
+                        synchronized (watchCreateLock) {
+                            grid = event.sub(ids);
+                        }
+                    } else {
+                        grid = event.sub(ids);
+                    }
+                } catch (CallErrException e) {
+                    watchError(e);
+                    return;
+                }
+                conn.watchAccessed();
+                subscribed.set(true);
+                if (grid != null) {
+                    // Publish the current values right away
+                    pollDispatcher.dispatch(grid, new Handler<HRow>() {
+                        @Override
+                        public void handle(HRow row) {
+                            applyRow(row, false);
+                        }
+                    });
+                }
+            }
+        });
+        return subscribed.get();
     }
 
     private void updateSubscriptions() {
@@ -498,14 +1530,15 @@ public class Haystack {
         try {
             while ((toSubscribe != null) || (toUnsubscribe != null)) {
                 if ((toSubscribe != null) && !toSubscribe.isEmpty()) {
-                    final HRef[] ids = new HRef[toSubscribe.size()];
-                    toSubscribe.toArray(ids);
-                    conn.getWatch(new StateHandler<HWatch>() {
-                        @Override
-                        public void handle(HWatch event) {
-                            event.sub(ids);
+                    final HRef[] all = new HRef[toSubscribe.size()];
+                    toSubscribe.toArray(all);
+                    int size = getSubChunkSize();
+                    for (int i = 0; i < all.length; i += size) {
+                        int end = Math.min(all.length, i + size);
+                        if (!subscribeChunk(Arrays.copyOfRange(all, i, end))) {
+                            break;
                         }
-                    });
+                    }
                 }
                 if ((toUnsubscribe != null) && !toUnsubscribe.isEmpty()) {
                     final HRef[] ids = new HRef[toUnsubscribe.size()];
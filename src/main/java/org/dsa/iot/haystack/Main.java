@@ -1,9 +1,7 @@
 package org.dsa.iot.haystack;
 
 import java.util.Arrays;
-import java.util.Iterator;
 import java.util.Map;
-import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import org.dsa.iot.dslink.DSLink;
 import org.dsa.iot.dslink.DSLinkFactory;
@@ -14,16 +12,13 @@ import org.dsa.iot.dslink.util.StringUtils;
 import org.dsa.iot.haystack.actions.Actions;
 import org.dsa.iot.haystack.actions.GetHistory;
 import org.dsa.iot.haystack.actions.InvokeActions;
-import org.dsa.iot.haystack.helpers.StateHandler;
+import org.dsa.iot.haystack.helpers.EntityCache;
+import org.dsa.iot.haystack.helpers.PathResolver;
 import org.projecthaystack.HDict;
-import org.projecthaystack.HGrid;
 import org.projecthaystack.HRef;
-import org.projecthaystack.HRow;
 import org.projecthaystack.HStr;
 import org.projecthaystack.HTimeZone;
 import org.projecthaystack.HVal;
-import org.projecthaystack.client.HClient;
-import org.projecthaystack.io.HZincReader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -33,8 +28,8 @@ import org.slf4j.LoggerFactory;
 public class Main extends DSLinkHandler {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(Main.class);
+    private static final long WALK_TIMEOUT = 5;
     private DSLink link;
-    private final Object subFailLock = new Object();
 
     @Override
     public boolean isResponder() {
@@ -69,173 +64,110 @@ public class Main extends DSLinkHandler {
     @Override
     public Node onSubscriptionFail(String path) {
         NodeManager manager = link.getNodeManager();
+        Node node = manager.getNode(path, false, false).getNode();
+        if (node != null) {
+            return node;
+        }
         String[] split = NodeManager.splitPath(path);
-        Node superRoot = manager.getSuperRoot();
-        try {
-            Thread.sleep(2000);
-        } catch (InterruptedException ignore) {
+        Node server = manager.getSuperRoot().getChild(split[0], false);
+        if (server == null) {
+            return null;
         }
-        synchronized (subFailLock) {
-            Node node = manager.getNode(path, false, false).getNode();
+        Haystack haystack = server.getMetaData();
+        if (haystack != null) {
+            node = haystack.getPathResolver().resolve(manager, path);
             if (node != null) {
                 return node;
             }
-            Node n = superRoot;
-            int i = 0;
-            while (i < split.length) {
-                Node next = n.getChild(split[i], false);
-                int tries = 0;
-                while (next == null && tries < 10) {
-                    tries++;
-                    try {
-                        subFailLock.wait(250);
-                    } catch (InterruptedException ignore) {
-                    }
-                    next = n.getChild(split[i], false);
-                }
-                if (next == null) {
-                    return null;
-                }
-                n = next;
-                n.getListener().postListUpdate();
-                i++;
-            }
-            return n;
         }
+        return walkPath(server, split);
     }
 
     @Override
     public Node onInvocationFail(final String path) {
         final String[] split = NodeManager.splitPath(path);
-
-        final HRef id;
-        {
-            String sID = split[split.length - 2];
-            sID = StringUtils.decodeName(sID);
-            id = HRef.make(sID);
-        }
-
         final NodeManager manager = link.getNodeManager();
         final Node superRoot = manager.getSuperRoot();
         final Haystack haystack = superRoot.getChild(split[0], true).getMetaData();
         final String actName = StringUtils.decodeName(split[split.length - 1]);
+        final EntityCache cache = haystack.getEntityCache();
 
-        final CountDownLatch latch = new CountDownLatch(1);
-        final Container container = new Container();
-        if ("getHistory".equals(actName)) {
-            haystack.getConnHelper().getClient(new StateHandler<HClient>() {
-                @Override
-                public void handle(HClient event) {
-                    final HRef id;
-                    {
-                        String sID = split[split.length - 3];
-                        sID = StringUtils.decodeName(sID);
-                        id = HRef.make(sID);
-                    }
+        String[] pSplit = Arrays.copyOf(split, split.length - 1);
+        String parent = StringUtils.join(pSplit, "/");
 
-                    HDict dict = event.readById(id);
-                    HVal tz = dict.get("tz", false);
-                    HTimeZone htz = null;
-                    if (tz != null) {
-                        htz = HTimeZone.make(tz.toString(), false);
-                    }
-
-                    String[] pSplit = Arrays.copyOf(split, split.length - 1);
-                    String parent = StringUtils.join(pSplit, "/");
-                    Node node = manager.getNode(parent, true).getNode();
-                    container.node = new GetHistory(node, haystack, HRef.make(id.toString()), htz)
-                            .getActionNode();
-                    latch.countDown();
-                }
-            });
-        } else if ("set".equals(actName)) {
-            haystack.getConnHelper().getClient(new StateHandler<HClient>() {
-                @Override
-                public void handle(HClient event) {
-                    HDict dict = event.readById(id);
-                    HVal hKind = dict.get("kind", false);
-                    String kind = null;
-                    if (hKind != null) {
-                        kind = hKind.toString();
-                    }
+        if ("getHistory".equals(actName)) {
+            HRef id = HRef.make(StringUtils.decodeName(split[split.length - 3]));
+            HDict dict = cache.get(id);
+            if (dict == null) {
+                return null;
+            }
+            HVal tz = dict.get("tz", false);
+            HTimeZone htz = null;
+            if (tz != null) {
+                htz = HTimeZone.make(tz.toString(), false);
+            }
+            HVal kind = dict.get("kind", false);
+            Node node = manager.getNode(parent, true).getNode();
+            return new GetHistory(node, haystack, id, htz,
+                                  kind != null ? kind.toString() : null).getActionNode();
+        }
 
-                    String[] pSplit = Arrays.copyOf(split, split.length - 1);
-                    String parent = StringUtils.join(pSplit, "/");
-                    Node node = manager.getNode(parent, true).getNode();
-                    container.node = Actions.getSetAction(haystack, node, id, kind);
-                    latch.countDown();
-                }
-            });
-        } else if ("pointWrite".equals(actName)) {
-            haystack.getConnHelper().getClient(new StateHandler<HClient>() {
-                @Override
-                public void handle(HClient event) {
-                    HDict dict = event.readById(id);
-                    HVal hKind = dict.get("kind", false);
-                    String kind = null;
-                    if (hKind != null) {
-                        kind = hKind.toString();
-                    }
+        HRef id = HRef.make(StringUtils.decodeName(split[split.length - 2]));
+        HDict dict = cache.get(id);
+        if (dict == null) {
+            return null;
+        }
+        if ("set".equals(actName) || "pointWrite".equals(actName)) {
+            HVal hKind = dict.get("kind", false);
+            String kind = null;
+            if (hKind != null) {
+                kind = hKind.toString();
+            }
+            Node node = manager.getNode(parent, true).getNode();
+            if ("set".equals(actName)) {
+                return Actions.getSetAction(haystack, node, id, kind);
+            }
+            return Actions.getPointWriteAction(haystack, node, id, kind);
+        }
 
-                    String[] pSplit = Arrays.copyOf(split, split.length - 1);
-                    String parent = StringUtils.join(pSplit, "/");
+        HVal actions = dict.get("actions", false);
+        if (actions instanceof HStr) {
+            for (InvokeActions.ActionDef def : InvokeActions.getActions(haystack, ((HStr) actions).val)) {
+                if (actName.equals(def.getDis())) {
                     Node node = manager.getNode(parent, true).getNode();
-                    container.node = Actions.getPointWriteAction(haystack, node, id, kind);
-                    latch.countDown();
+                    return def.build(haystack, id, node);
                 }
-            });
-        } else {
-            haystack.getConnHelper().getClient(new StateHandler<HClient>() {
-                @Override
-                public void handle(HClient event) {
-                    HDict dict = event.readById(id);
-                    HVal actions = dict.get("actions");
-                    String zinc = ((HStr) actions).val;
-                    if (!zinc.endsWith("\n")) {
-                        zinc += "\n";
-                    }
-                    HZincReader reader = new HZincReader(zinc);
-                    HGrid grid = reader.readGrid();
-                    Iterator<?> it = grid.iterator();
-                    boolean doThrow = true;
-                    while (it.hasNext()) {
-                        HRow r = (HRow) it.next();
-                        if (!actName.equals(r.dis())) {
-                            continue;
-                        }
-                        String[] pSplit = Arrays.copyOf(split, split.length - 1);
-                        String parent = StringUtils.join(pSplit, "/");
-                        Node node = manager.getNode(parent, true).getNode();
-                        InvokeActions.handleAction(haystack, id, node, r);
-                        doThrow = false;
+            }
+        }
+        String err = "Action " + actName + " does not exist";
+        throw new RuntimeException(err);
+    }
 
-                        String name = split[split.length - 1];
-                        name = StringUtils.encodeName(name);
-                        container.node = node.getChild(name, false);
-                        break;
-                    }
-                    if (doThrow) {
-                        String err = "Action " + actName + " does not exist";
-                        throw new RuntimeException(err);
-                    }
-                    latch.countDown();
-                }
-            });
+    /**
+     * Fallback for paths that don't end in a point tag. Navigates each
+     * folder whose next segment doesn't exist yet.
+     */
+    private Node walkPath(Node server, String[] split) {
+        Haystack haystack = server.getMetaData();
+        if (haystack == null) {
+            return null;
         }
-        try {
-            latch.await(10, TimeUnit.SECONDS);
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
+        PathResolver resolver = haystack.getPathResolver();
+        Node n = server;
+        for (int i = 1; i < split.length; i++) {
+            Node next = n.getChild(split[i], false);
+            if (next == null && resolver.list(n, WALK_TIMEOUT, TimeUnit.SECONDS)) {
+                next = n.getChild(split[i], false);
+            }
+            if (next == null) {
+                return null;
+            }
+            n = next;
         }
-        return container.node;
+        return n;
     }
 
     public static void main(String[] args) {
         DSLinkFactory.start(args, new Main());
     }
-
-    private static class Container {
-
-        Node node;
-    }
 }
@@ -1,5 +1,6 @@
 package org.dsa.iot.haystack;
 
+import java.io.File;
 import org.dsa.iot.dslink.node.Node;
 import org.dsa.iot.dslink.node.NodeBuilder;
 import org.dsa.iot.dslink.node.NodeListener;
@@ -7,9 +8,11 @@ import org.dsa.iot.dslink.node.value.Value;
 import org.dsa.iot.dslink.node.value.ValueType;
 import org.dsa.iot.dslink.util.handler.Handler;
 import org.dsa.iot.haystack.actions.Actions;
+import org.dsa.iot.haystack.actions.GetMultiHistory;
 import org.dsa.iot.haystack.actions.InvokeActions;
 import org.dsa.iot.haystack.actions.ServerActions;
 import org.dsa.iot.haystack.handlers.ListHandler;
+import org.dsa.iot.haystack.helpers.TimestampEncoder;
 import org.projecthaystack.HBool;
 import org.projecthaystack.HDate;
 import org.projecthaystack.HDateTime;
@@ -24,6 +27,36 @@ import org.projecthaystack.HVal;
  */
 public class Utils {
 
+    private static final String DATA_DIR = "haystack";
+
+    /**
+     * @return A file for the local state of the server with the given
+     * extension. The data directory is created when missing.
+     */
+    public static File getDataFile(Node server, String ext) {
+        File dir = new File(DATA_DIR);
+        if (!dir.isDirectory()) {
+            dir.mkdirs();
+        }
+        return new File(dir, toFileName(server.getName()) + '.' + ext);
+    }
+
+    /**
+     * @return The name with every character that isn't safe in a file name
+     * escaped.
+     */
+    public static String toFileName(String name) {
+        StringBuilder buf = new StringBuilder();
+        for (char c : name.toCharArray()) {
+            if (Character.isLetterOrDigit(c) || c == '-' || c == '_') {
+                buf.append(c);
+            } else {
+                buf.append('~').append(Integer.toHexString(c));
+            }
+        }
+        return buf.toString();
+    }
+
     public static HRef idToRef(Value value) {
         return idToRef(value.getString());
     }
@@ -75,6 +108,18 @@ public class Utils {
         }
     }
 
+    /**
+     * @return The raw object of a value converted by {@link #hvalToVal(HVal)}.
+     */
+    public static Object valToObject(Value value) {
+        if (value.getType() == ValueType.NUMBER) {
+            return value.getNumber();
+        } else if (value.getType() == ValueType.BOOL) {
+            return value.getBool();
+        }
+        return value.getString();
+    }
+
     public static Value hvalToVal(HVal val) {
         if (val == null) {
             return null;
@@ -84,36 +129,35 @@ public class Utils {
             return new Value(((HBool) val).val);
         } else if (val instanceof HDateTime) {
             HDateTime time = (HDateTime) val;
-            StringBuilder s = new StringBuilder();
-            s.append(time.date.toZinc());
-            s.append('T');
-            s.append(time.time.toZinc());
-            if (time.tzOffset == 0) {
-                s.append('Z');
-            } else {
-                int offset = time.tzOffset;
-                if (offset < 0) {
-                    s.append('-');
-                    offset = -offset;
-                } else {
-                    s.append('+');
-                }
-                int zh = offset / 3600;
-                int zm = (offset % 3600) / 60;
-                if (zh < 10) {
-                    s.append('0');
-                }
-                s.append(zh);
-                if (zm < 10) {
-                    s.append('0');
-                }
-                s.append(zm);
-            }
+            StringBuilder s = TimestampEncoder.appendZinc(time, new StringBuilder(32));
             return new Value(s.toString());
         }
         return new Value(val.toString());
     }
 
+    /**
+     * @return Whether both values have the same type and content, ignoring
+     * their timestamps.
+     */
+    public static boolean isEqual(Value a, Value b) {
+        if (a == b) {
+            return true;
+        }
+        if (a == null || b == null) {
+            return false;
+        }
+        if (a.getType() != b.getType()) {
+            return false;
+        }
+        return equal(a.getNumber(), b.getNumber())
+                && equal(a.getBool(), b.getBool())
+                && equal(a.getString(), b.getString());
+    }
+
+    private static boolean equal(Object a, Object b) {
+        return (a == null) ? (b == null) : a.equals(b);
+    }
+
     public static void initCommon(Haystack haystack, Node node) {
         NodeBuilder remServer = getBuilder(node, "removeServer");
         remServer.setDisplayName("Remove Server");
@@ -145,6 +189,12 @@ public class Utils {
         hisReadNode.setSerializable(false);
         hisReadNode.build();
 
+        NodeBuilder multiHisNode = getBuilder(node, "getMultiHistory");
+        multiHisNode.setDisplayName("Get Multi-Point History");
+        multiHisNode.setAction(GetMultiHistory.getAction(haystack));
+        multiHisNode.setSerializable(false);
+        multiHisNode.build();
+
         NodeBuilder subNode = getBuilder(node, "subscribe");
         subNode.setDisplayName("Subscribe");
         subNode.setAction(Actions.getSubscribeAction(haystack));
@@ -175,6 +225,23 @@ public class Utils {
         }
     }
 
+    /**
+     * Gets or creates a numeric, non-serialized metric node.
+     */
+    public static Node getMetricNode(Node node, String name, String displayName) {
+        synchronized (node) {
+            Node metric = node.getChild(name, false);
+            if (metric == null) {
+                metric = node.createChild(name, false)
+                             .setDisplayName(displayName)
+                             .setValueType(ValueType.NUMBER)
+                             .setValue(new Value(0)).build();
+                metric.setSerializable(false);
+            }
+            return metric;
+        }
+    }
+
     private static Node createStatusNode(Node node) {
         Node statusNode = node.createChild("Status", false)
                               .setValueType(ValueType.STRING)
@@ -1,12 +1,19 @@
 package org.dsa.iot.haystack.actions;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Calendar;
-import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import org.dsa.iot.dslink.methods.StreamState;
 import org.dsa.iot.dslink.node.Node;
 import org.dsa.iot.dslink.node.NodeBuilder;
@@ -21,27 +28,32 @@ import org.dsa.iot.dslink.node.actions.table.Row;
 import org.dsa.iot.dslink.node.actions.table.Table;
 import org.dsa.iot.dslink.node.value.Value;
 import org.dsa.iot.dslink.node.value.ValueType;
-import org.dsa.iot.dslink.provider.LoopProvider;
 import org.dsa.iot.dslink.util.TimeUtils;
-import org.dsa.iot.dslink.util.handler.CompleteHandler;
 import org.dsa.iot.dslink.util.handler.Handler;
 import org.dsa.iot.dslink.util.json.JsonObject;
 import org.dsa.iot.haystack.Haystack;
 import org.dsa.iot.haystack.Utils;
+import org.dsa.iot.haystack.helpers.HisBuffer;
+import org.dsa.iot.haystack.helpers.HisCache;
+import org.dsa.iot.haystack.helpers.StateHandler;
+import org.dsa.iot.haystack.helpers.TimestampEncoder;
 import org.dsa.iot.historian.stats.interval.IntervalParser;
 import org.dsa.iot.historian.stats.interval.IntervalProcessor;
 import org.dsa.iot.historian.stats.rollup.Rollup;
 import org.dsa.iot.historian.utils.QueryData;
+import org.projecthaystack.HBool;
 import org.projecthaystack.HCol;
 import org.projecthaystack.HDateTime;
 import org.projecthaystack.HDict;
 import org.projecthaystack.HGrid;
-import org.projecthaystack.HGridBuilder;
+import org.projecthaystack.HNum;
 import org.projecthaystack.HRef;
 import org.projecthaystack.HRow;
-import org.projecthaystack.HStr;
 import org.projecthaystack.HTimeZone;
 import org.projecthaystack.HVal;
+import org.projecthaystack.client.CallErrException;
+import org.projecthaystack.client.CallHttpException;
+import org.projecthaystack.client.HClient;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -51,17 +63,22 @@ import org.slf4j.LoggerFactory;
 public class GetHistory implements Handler<ActionResult> {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(GetHistory.class);
+    private static final int BATCH_SIZE = 100;
 
     private static final Parameter INTERVAL;
     private static final Parameter ROLLUP;
     private static final Parameter TIMERANGE;
     private static final Parameter TIMESTAMP = new Parameter("timestamp", ValueType.TIME);
     private static final Parameter VALUE = new Parameter("value", ValueType.DYNAMIC);
+    private static final Pattern DURATION = Pattern.compile("(\\d+)\\s*([a-zA-Z]+)");
+    private static final Map<String, String> AXON_ROLLUPS = new HashMap<>();
+    private static final Map<String, String> AXON_UNITS = new HashMap<>();
 
     private Node actionNode;
     private final Haystack haystack;
     private final HRef id;
     private final HTimeZone tz;
+    private final HisReader reader;
 
     static {
         List<String> enums = new ArrayList<>();
@@ -77,6 +94,29 @@ public class GetHistory implements Handler<ActionResult> {
         enums.add("count");
         enums.add("delta");
 
+        for (String fn : new String[]{"avg", "min", "max", "sum", "first", "last", "count"}) {
+            AXON_ROLLUPS.put(fn, fn);
+        }
+        // Units are case sensitive, M is months which aren't pushed down
+        AXON_UNITS.put("s", "sec");
+        AXON_UNITS.put("sec", "sec");
+        AXON_UNITS.put("second", "sec");
+        AXON_UNITS.put("seconds", "sec");
+        AXON_UNITS.put("m", "min");
+        AXON_UNITS.put("min", "min");
+        AXON_UNITS.put("minute", "min");
+        AXON_UNITS.put("minutes", "min");
+        AXON_UNITS.put("h", "hr");
+        AXON_UNITS.put("hr", "hr");
+        AXON_UNITS.put("hour", "hr");
+        AXON_UNITS.put("hours", "hr");
+        AXON_UNITS.put("d", "day");
+        AXON_UNITS.put("day", "day");
+        AXON_UNITS.put("days", "day");
+        AXON_UNITS.put("w", "wk");
+        AXON_UNITS.put("week", "wk");
+        AXON_UNITS.put("weeks", "wk");
+
         INTERVAL = new Parameter("Interval", ValueType.STRING);
         INTERVAL.setDefaultValue(new Value("none"));
         ROLLUP = new Parameter("Rollup", ValueType.makeEnum(enums));
@@ -87,13 +127,15 @@ public class GetHistory implements Handler<ActionResult> {
     public GetHistory(Node node,
                       Haystack haystack,
                       HRef id,
-                      HTimeZone tz) {
+                      HTimeZone tz,
+                      String kind) {
         this.haystack = haystack;
         this.id = id;
         if (tz == null) {
             tz = HTimeZone.DEFAULT;
         }
         this.tz = tz;
+        this.reader = new HisReader(haystack, id, tz, kind);
         initAction(node);
     }
 
@@ -132,9 +174,67 @@ public class GetHistory implements Handler<ActionResult> {
 
         IntervalParser parser = IntervalParser.parse(sInterval);
         Rollup.Type type = Rollup.Type.toEnum(sRollup);
+        if (haystack.isRollupPushdown() && !haystack.isEvalUnsupported()) {
+            String expr = getRollupExpr(from, to, sInterval, sRollup);
+            if (expr != null) {
+                pushdown(event, from, to, type, parser, expr);
+                return;
+            }
+        }
+        if (parser != null) {
+            setRollupMeta(table, "client");
+        }
         process(event, from, to, type, parser);
     }
 
+    /**
+     * Rolls up the history on the server with Axon and falls back to the
+     * client rollup when the server can't evaluate it. The path taken is
+     * reported in the rollup column of the table meta.
+     */
+    protected void pushdown(final ActionResult event,
+                            final long from,
+                            final long to,
+                            final Rollup.Type rollup,
+                            final IntervalParser parser,
+                            final String expr) {
+        haystack.getHisExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                HGrid grid = null;
+                try {
+                    grid = eval(expr);
+                } catch (Exception x) {
+                    if (isRejected(x)) {
+                        // Not asked again until the server is edited
+                        haystack.setEvalUnsupported(true);
+                        LOGGER.info("{} rejected rollup pushdown, rolling up locally: {}",
+                                    haystack.getNode().getName(), x.getMessage());
+                    } else {
+                        LOGGER.debug("Rollup pushdown failed, rolling up locally: {}", expr, x);
+                    }
+                }
+                Table table = event.getTable();
+                if (grid == null) {
+                    setRollupMeta(table, "client");
+                    process(event, from, to, rollup, parser);
+                    return;
+                }
+                setRollupMeta(table, "server");
+                setMeta(table, grid);
+                HisWriter writer = new HisWriter(table, null);
+                Exception failure = null;
+                try {
+                    emit(grid, Long.MIN_VALUE, writer);
+                } catch (Exception x) {
+                    LOGGER.error("", x);
+                    failure = x;
+                }
+                writer.complete(failure);
+            }
+        });
+    }
+
     protected void process(final ActionResult event,
                            final long from,
                            final long to,
@@ -142,104 +242,102 @@ public class GetHistory implements Handler<ActionResult> {
                            final IntervalParser parser) {
         final IntervalProcessor interval = IntervalProcessor.parse(parser, rollup, tz.java);
         final Table table = event.getTable();
-        final StringBuilder buffer = new StringBuilder();
-        final Calendar calendar = TimeUtils.reuseCalendar();
-        calendar.setTimeZone(tz.java);
-        query(table, from, to, new CompleteHandler<QueryData>() {
+        query(table, from, to, new HisWriter(table, interval));
+    }
 
-            private List<QueryData> updates = new LinkedList<>();
+    protected void query(final Table table,
+                         final long from,
+                         final long to,
+                         final HisWriter writer) {
+        haystack.getHisExecutor().execute(new PagedQuery(table, from, to, writer));
+    }
 
-            @Override
-            public void handle(QueryData data) {
-                List<QueryData> updates = this.updates;
-                if (updates != null) {
-                    updates.add(data);
-                    if (updates.size() >= 100) {
-                        processQueryData(table, interval, updates, calendar, buffer);
-                    }
-                }
-            }
+    /**
+     * @return Axon expression that reads and rolls up the range or null if
+     * the interval or rollup has no Axon equivalent.
+     */
+    protected String getRollupExpr(long from, long to, String interval, String rollup) {
+        String fn = AXON_ROLLUPS.get(rollup);
+        if (fn == null) {
+            return null;
+        }
+        Matcher m = DURATION.matcher(interval.trim());
+        if (!m.matches()) {
+            return null;
+        }
+        String unit = AXON_UNITS.get(m.group(2));
+        if (unit == null) {
+            return null;
+        }
+        long amount = Long.parseLong(m.group(1));
+        if ("wk".equals(unit)) {
+            amount *= 7;
+            unit = "day";
+        }
+        return "hisRead(" + id.toZinc() + ", "
+                + toAxon(from) + ".." + toAxon(to) + ").hisRollup("
+                + fn + ", " + amount + unit + ")";
+    }
+
+    private String toAxon(long millis) {
+        HDateTime dt = HDateTime.make(millis, tz);
+        return String.format("dateTime(%s, %02d:%02d:%02d, \"%s\")",
+                             dt.date.toZinc(), dt.time.hour, dt.time.min,
+                             dt.time.sec, tz.name);
+    }
 
+    /**
+     * Evaluates an Axon expression synchronously. Failures are left to the
+     * caller rather than logged, since pushdown falls back on them.
+     *
+     * @return The result or null if the server is disabled.
+     */
+    protected HGrid eval(final String expr) {
+        final HGrid[] result = new HGrid[1];
+        final RuntimeException[] error = new RuntimeException[1];
+        final CountDownLatch latch = new CountDownLatch(1);
+        haystack.getConnHelper().getClient(new StateHandler<HClient>() {
             @Override
-            public void complete() {
-                if (!updates.isEmpty()) {
-                    processQueryData(table, interval, updates, calendar, buffer);
-                }
-                updates = null;
-                if (interval != null) {
-                    Row row = interval.complete();
-                    if (row != null) {
-                        table.addRow(row);
+            public void handle(HClient client) {
+                try {
+                    if (client != null) {
+                        result[0] = client.eval(expr);
                     }
+                } catch (RuntimeException x) {
+                    error[0] = x;
+                } finally {
+                    latch.countDown();
                 }
-                table.close();
-                TimeUtils.recycleCalendar(calendar);
             }
         });
-    }
-
-    protected void query(final Table table, long from, long to, final CompleteHandler<QueryData> handler) {
-        StringBuilder buf = new StringBuilder();
-        buf.append(HDateTime.make(from, tz));
-        buf.append(',');
-        buf.append(HDateTime.make(to, tz));
-        HGridBuilder builder = new HGridBuilder();
-        builder.addCol("id");
-        builder.addCol("range");
-        builder.addRow(new HVal[]{
-                HRef.make(id.toString()),
-                HStr.make(buf.toString())
-        });
-
-        haystack.call("hisRead", builder.toGrid(), new Handler<HGrid>() {
-            @Override
-            public void handle(HGrid grid) {
-                LoopProvider.getProvider().schedule(new QueryProcessor(table, grid, handler));
+        try {
+            if (!latch.await(haystack.getReadTimeout() * 2L, TimeUnit.SECONDS)) {
+                throw new RuntimeException("eval timed out: " + expr);
             }
-        });
+        } catch (InterruptedException x) {
+            throw new RuntimeException(x);
+        }
+        if (error[0] != null) {
+            throw error[0];
+        }
+        return result[0];
     }
 
-    protected void processQueryData(Table table,
-                                    IntervalProcessor interval,
-                                    Collection<QueryData> data,
-                                    Calendar calendar,
-                                    StringBuilder buffer) {
-        if (data.isEmpty()) {
-            return;
-        }
-        BatchRow batch = null;
-        Iterator<QueryData> it = data.iterator();
-        while (it.hasNext()) {
-            QueryData update = it.next();
-            it.remove();
-            Row row;
-            long time = update.getTimestamp();
-            if (interval == null) {
-                row = new Row();
-                calendar.setTimeInMillis(time);
-                buffer.setLength(0);
-                String t = TimeUtils.encode(calendar, true, buffer).toString();
-                row.addValue(new Value(t));
-                row.addValue(update.getValue());
-            } else {
-                row = interval.getRowUpdate(update, time);
+    /**
+     * @return Whether the server answered that it can't evaluate the
+     * expression, as opposed to failing to answer at all.
+     */
+    private static boolean isRejected(Throwable x) {
+        for (Throwable t = x; t != null; t = t.getCause()) {
+            if (t instanceof CallErrException) {
+                return true;
             }
-
-            if (row != null) {
-                if (batch == null) {
-                    batch = new BatchRow();
-                }
-                batch.addRow(row);
-            }
-        }
-        if (batch != null) {
-            // If we can't get a stream open to the requester, then there's a chance batch rows
-            // could eventually cause an out of memory situation.  So fail the invocation after a
-            // minute of not getting a response.
-            if (table.waitForStream(60000, true, true)) {
-                table.addBatchRows(batch);
+            if (t instanceof CallHttpException) {
+                String msg = t.getMessage();
+                return msg != null && msg.startsWith("4");
             }
         }
+        return false;
     }
 
     private void initAction(Node node) {
@@ -261,51 +359,266 @@ public class GetHistory implements Handler<ActionResult> {
         actionNode = b.build();
     }
 
-    private static class QueryProcessor implements Runnable {
+    /**
+     * Reads the range in pages. A few pages are read ahead in parallel and
+     * each is retried on its own, while rows are emitted in page order, so
+     * only the pages in flight are held in memory.
+     */
+    private class PagedQuery implements Runnable {
 
-        private final HGrid grid;
-        private final CompleteHandler<QueryData> handler;
         private final Table table;
+        private final long from;
+        private final long to;
+        private final HisWriter writer;
 
-        QueryProcessor(Table table, HGrid grid, CompleteHandler<QueryData> handler) {
-            this.grid = grid;
-            this.handler = handler;
+        PagedQuery(Table table, long from, long to, HisWriter writer) {
             this.table = table;
+            this.from = from;
+            this.to = to;
+            this.writer = writer;
         }
 
+        @Override
         public void run() {
+            Deque<FutureTask<HisReader.Page>> pending = new ArrayDeque<>();
+            Throwable failure = null;
             try {
-                HDict meta = grid.meta();
-                if (meta != null && !meta.isEmpty()) {
-                    Iterator<?> it = meta.iterator();
-                    JsonObject metaObj = new JsonObject();
-                    while (it.hasNext()) {
-                        Map.Entry entry = (Map.Entry) it.next();
-                        String name = (String) entry.getKey();
-                        if (name != null) {
-                            HVal val = (HVal) entry.getValue();
-                            Value value = Utils.hvalToVal(val);
-                            metaObj.put(name, value);
-                        }
+                Iterator<HisReader.PageRead> reads = reader.split(from, to).iterator();
+                int max = Math.max(1, haystack.getMaxConnections() - 1);
+                int parallel = Math.max(1, Math.min(haystack.getHisParallelism(), max));
+                long last = Long.MIN_VALUE;
+                boolean first = true;
+                setRangeMeta(table, from, to);
+                while (reads.hasNext() || !pending.isEmpty()) {
+                    while (reads.hasNext() && pending.size() < parallel) {
+                        FutureTask<HisReader.Page> task = new FutureTask<>(reads.next());
+                        pending.add(task);
+                        haystack.getHisExecutor().execute(task);
                     }
-                    table.setTableMeta(metaObj);
-                }
-                HCol ts = grid.col("ts");
-                HCol val = grid.col("val");
-                Iterator it = grid.iterator();
-                HRow row;
-                while (it.hasNext()) {
-                    row = (HRow) it.next();
-                    HDateTime dt = (HDateTime) row.get(ts, false);
-                    handler.handle(new QueryData(
-                            Utils.hvalToVal(row.get(val, false)),
-                            dt.millis()));
+                    FutureTask<HisReader.Page> head = pending.poll();
+                    // Runs the read here if no thread has picked it up yet
+                    head.run();
+                    HisReader.Page page = head.get();
+                    if (page == null) {
+                        break;
+                    }
+                    if (page.segment != null) {
+                        last = emit(page.segment, last, writer);
+                        continue;
+                    }
+                    if (first) {
+                        setMeta(table, page.grid);
+                        setRangeMeta(table, from, to);
+                        first = false;
+                    }
+                    last = emit(page.grid, last, writer);
                 }
+            } catch (ExecutionException x) {
+                failure = x.getCause();
             } catch (Exception x) {
-                LOGGER.error("", x);
+                failure = x;
+            }
+            if (failure != null) {
+                LOGGER.error("History read of {} failed", id, failure);
+            }
+            for (FutureTask<HisReader.Page> task : pending) {
+                task.cancel(true);
+            }
+            writer.complete(failure);
+        }
+    }
+
+    /**
+     * Streams samples to the table. Samples are collected in a reused
+     * primitive buffer and turned into rows one batch at a time.
+     */
+    protected class HisWriter {
+
+        private final HisBuffer buffer = new HisBuffer(BATCH_SIZE);
+        private final TimestampEncoder encoder = new TimestampEncoder(tz.java);
+        private final Table table;
+        private final IntervalProcessor interval;
+
+        HisWriter(Table table, IntervalProcessor interval) {
+            this.table = table;
+            this.interval = interval;
+        }
+
+        public void add(long time, double value) {
+            if (buffer.add(time, value)) {
+                flush();
+            }
+        }
+
+        public void add(long time, boolean value) {
+            if (buffer.add(time, value)) {
+                flush();
+            }
+        }
+
+        public void add(long time, Value value) {
+            if (buffer.add(time, value)) {
+                flush();
+            }
+        }
+
+        public void complete() {
+            complete(null);
+        }
+
+        /**
+         * Closes the table, reporting the failure if there was one.
+         */
+        public void complete(Throwable failure) {
+            flush();
+            if (failure != null) {
+                setErrorMeta(table, failure);
+            }
+            if (interval != null) {
+                Row row = interval.complete();
+                if (row != null) {
+                    table.addRow(row);
+                }
+            }
+            table.close();
+        }
+
+        private void flush() {
+            if (buffer.isEmpty()) {
+                return;
+            }
+            BatchRow batch = null;
+            for (int i = 0; i < buffer.size(); i++) {
+                Row row;
+                long time = buffer.getTime(i);
+                if (interval == null) {
+                    row = new Row();
+                    row.addValue(new Value(encoder.encode(time)));
+                    row.addValue(buffer.getValue(i));
+                } else {
+                    // The interval processor only takes query data
+                    row = interval.getRowUpdate(new QueryData(buffer.getValue(i), time), time);
+                }
+
+                if (row != null) {
+                    if (batch == null) {
+                        batch = new BatchRow();
+                    }
+                    batch.addRow(row);
+                }
+            }
+            buffer.clear();
+            if (batch != null) {
+                // If we can't get a stream open to the requester, then there's a chance batch rows
+                // could eventually cause an out of memory situation.  So fail the invocation after a
+                // minute of not getting a response.
+                if (table.waitForStream(60000, true, true)) {
+                    table.addBatchRows(batch);
+                }
+            }
+        }
+    }
+
+    private static void setRollupMeta(Table table, String path) {
+        JsonObject metaObj = copyMeta(table);
+        metaObj.put("rollup", path);
+        table.setTableMeta(metaObj);
+    }
+
+    /**
+     * Reports a failure in the table meta, as the rows written before it
+     * may be only part of the requested range.
+     */
+    static void setErrorMeta(Table table, Throwable failure) {
+        JsonObject metaObj = copyMeta(table);
+        String msg = failure.getMessage();
+        metaObj.put("error", msg != null ? msg : failure.getClass().getName());
+        table.setTableMeta(metaObj);
+    }
+
+    static JsonObject copyMeta(Table table) {
+        JsonObject metaObj = new JsonObject();
+        JsonObject current = table.getTableMeta();
+        if (current != null) {
+            for (Map.Entry<String, Object> entry : current) {
+                metaObj.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return metaObj;
+    }
+
+    private static void setMeta(Table table, HGrid grid) {
+        HDict meta = grid.meta();
+        if (meta != null && !meta.isEmpty()) {
+            Iterator<?> it = meta.iterator();
+            JsonObject metaObj = copyMeta(table);
+            while (it.hasNext()) {
+                Map.Entry entry = (Map.Entry) it.next();
+                String name = (String) entry.getKey();
+                if (name != null) {
+                    HVal val = (HVal) entry.getValue();
+                    Value value = Utils.hvalToVal(val);
+                    metaObj.put(name, value);
+                }
+            }
+            table.setTableMeta(metaObj);
+        }
+    }
+
+    /**
+     * Sets the range of the whole query, since the meta of a page only
+     * covers that page and cached days have none.
+     */
+    private void setRangeMeta(Table table, long from, long to) {
+        JsonObject metaObj = copyMeta(table);
+        metaObj.put("hisStart", Utils.hvalToVal(HDateTime.make(from, tz)));
+        metaObj.put("hisEnd", Utils.hvalToVal(HDateTime.make(to, tz)));
+        table.setTableMeta(metaObj);
+    }
+
+    /**
+     * Passes the rows of a hisRead grid to the writer, skipping the rows
+     * at or before the last timestamp of the previous page.
+     *
+     * @return The last timestamp handled.
+     */
+    private static long emit(HGrid grid, long last, HisWriter writer) {
+        HCol ts = grid.col("ts");
+        HCol val = grid.col("val");
+        Iterator it = grid.iterator();
+        HRow row;
+        while (it.hasNext()) {
+            row = (HRow) it.next();
+            HDateTime dt = (HDateTime) row.get(ts, false);
+            long time = dt.millis();
+            if (time <= last) {
+                continue;
+            }
+            last = time;
+            HVal v = row.get(val, false);
+            if (v instanceof HNum) {
+                writer.add(time, ((HNum) v).val);
+            } else if (v instanceof HBool) {
+                writer.add(time, ((HBool) v).val);
+            } else {
+                writer.add(time, Utils.hvalToVal(v));
+            }
+        }
+        return last;
+    }
+
+    private static long emit(HisCache.Segment segment,
+                             long last,
+                             HisWriter writer) {
+        for (int i = 0; i < segment.size(); i++) {
+            long time = segment.getTime(i);
+            if (time <= last) {
+                continue;
             }
-            handler.complete();
+            last = time;
+            writer.add(time, segment.getValue(i));
         }
+        return last;
     }
 
 }
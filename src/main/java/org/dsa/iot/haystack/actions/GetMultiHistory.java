@@ -0,0 +1,485 @@
+package org.dsa.iot.haystack.actions;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import org.dsa.iot.dslink.methods.StreamState;
+import org.dsa.iot.dslink.node.Permission;
+import org.dsa.iot.dslink.node.actions.Action;
+import org.dsa.iot.dslink.node.actions.ActionResult;
+import org.dsa.iot.dslink.node.actions.EditorType;
+import org.dsa.iot.dslink.node.actions.Parameter;
+import org.dsa.iot.dslink.node.actions.ResultType;
+import org.dsa.iot.dslink.node.actions.table.BatchRow;
+import org.dsa.iot.dslink.node.actions.table.Row;
+import org.dsa.iot.dslink.node.actions.table.Table;
+import org.dsa.iot.dslink.node.value.Value;
+import org.dsa.iot.dslink.node.value.ValueType;
+import org.dsa.iot.dslink.util.TimeUtils;
+import org.dsa.iot.dslink.util.handler.Handler;
+import org.dsa.iot.dslink.util.json.JsonObject;
+import org.dsa.iot.haystack.Haystack;
+import org.dsa.iot.haystack.Utils;
+import org.dsa.iot.haystack.helpers.TimestampEncoder;
+import org.dsa.iot.historian.stats.interval.IntervalParser;
+import org.dsa.iot.historian.stats.interval.IntervalProcessor;
+import org.dsa.iot.historian.stats.rollup.Rollup;
+import org.dsa.iot.historian.utils.QueryData;
+import org.projecthaystack.HDateTime;
+import org.projecthaystack.HGrid;
+import org.projecthaystack.HRef;
+import org.projecthaystack.HRow;
+import org.projecthaystack.HStr;
+import org.projecthaystack.HTimeZone;
+import org.projecthaystack.HVal;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads the history of several points and streams it back as one table
+ * with a timestamp column and a column per point. Every point is read in
+ * pages through its own {@link HisReader}, optionally rolled up, and the
+ * pages are merged on their timestamps as they arrive, so a row holds the
+ * value of every point at that time and only a page per point is held in
+ * memory.
+ */
+public class GetMultiHistory implements Handler<ActionResult> {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(GetMultiHistory.class);
+    private static final int MAX_POINTS = 100;
+    private static final int BATCH_SIZE = 100;
+
+    private final Haystack haystack;
+
+    private GetMultiHistory(Haystack haystack) {
+        this.haystack = haystack;
+    }
+
+    public static Action getAction(Haystack haystack) {
+        Action a = new Action(Permission.READ, new GetMultiHistory(haystack));
+        {
+            Parameter p = new Parameter("IDs", ValueType.STRING);
+            p.setDescription("Comma separated point ids, the filter is used when empty");
+            a.addParameter(p);
+        }
+        {
+            Parameter p = new Parameter("Filter", ValueType.STRING);
+            p.setPlaceHolder("his and point");
+            a.addParameter(p);
+        }
+        {
+            Parameter p = new Parameter("Timerange", ValueType.STRING);
+            p.setEditorType(EditorType.DATE_RANGE);
+            a.addParameter(p);
+        }
+        {
+            Parameter p = new Parameter("Interval", ValueType.STRING);
+            p.setDefaultValue(new Value("none"));
+            a.addParameter(p);
+        }
+        {
+            List<String> enums = new ArrayList<>();
+            enums.add("none");
+            enums.add("and");
+            enums.add("or");
+            enums.add("avg");
+            enums.add("min");
+            enums.add("max");
+            enums.add("sum");
+            enums.add("first");
+            enums.add("last");
+            enums.add("count");
+            enums.add("delta");
+            a.addParameter(new Parameter("Rollup", ValueType.makeEnum(enums)));
+        }
+        a.setResultType(ResultType.STREAM);
+        return a;
+    }
+
+    @Override
+    public void handle(final ActionResult event) {
+        if (!haystack.isEnabled()) {
+            throw new IllegalStateException("Disabled");
+        }
+        final String filter = getFilter(event);
+        final long from;
+        final long to;
+        Calendar cal;
+        Value v = event.getParameter("Timerange");
+        if (v != null) {
+            String[] split = v.getString().split("/");
+            cal = TimeUtils.decode(split[0], null);
+            from = cal.getTimeInMillis();
+            TimeUtils.decode(split[1], cal);
+            to = cal.getTimeInMillis();
+        } else { // Default to today
+            cal = TimeUtils.alignDay(Calendar.getInstance());
+            from = cal.getTimeInMillis();
+            TimeUtils.addDays(1, cal);
+            to = cal.getTimeInMillis();
+        }
+        TimeUtils.recycleCalendar(cal);
+
+        Value def = new Value("none");
+        final IntervalParser parser = IntervalParser.parse(
+                event.getParameter("Interval", def).getString());
+        final Rollup.Type rollup = Rollup.Type.toEnum(
+                event.getParameter("Rollup", def).getString());
+
+        event.setStreamState(StreamState.INITIALIZED);
+        event.getTable().setMode(Table.Mode.APPEND);
+        haystack.getHisExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                Table table = event.getTable();
+                Throwable failure = null;
+                try {
+                    List<Cursor> cursors = readPoints(filter, from, to, parser, rollup);
+                    write(table, cursors);
+                } catch (ExecutionException x) {
+                    failure = x.getCause();
+                } catch (Exception x) {
+                    failure = x;
+                }
+                if (failure != null) {
+                    LOGGER.error("Multi-point history read failed", failure);
+                    GetHistory.setErrorMeta(table, failure);
+                }
+                table.close();
+            }
+        });
+    }
+
+    private static String getFilter(ActionResult event) {
+        Value vIds = event.getParameter("IDs");
+        if (vIds != null && !vIds.getString().trim().isEmpty()) {
+            StringBuilder buf = new StringBuilder();
+            for (String id : vIds.getString().split(",")) {
+                id = id.trim();
+                if (id.isEmpty()) {
+                    continue;
+                }
+                if (buf.length() > 0) {
+                    buf.append(" or ");
+                }
+                buf.append("id==").append(Utils.idToRef(id).toZinc());
+            }
+            if (buf.length() > 0) {
+                return buf.toString();
+            }
+        }
+        Value vFilter = event.getParameter("Filter");
+        if (vFilter == null || vFilter.getString().trim().isEmpty()) {
+            throw new IllegalArgumentException("IDs or Filter is required");
+        }
+        return vFilter.getString();
+    }
+
+    /**
+     * Reads the records of the points so the columns can be named and the
+     * timestamps can be put in the time zone of the points.
+     */
+    private List<Cursor> readPoints(String filter,
+                                    long from,
+                                    long to,
+                                    IntervalParser parser,
+                                    Rollup.Type rollup) throws InterruptedException {
+        final HGrid[] result = new HGrid[1];
+        final CountDownLatch latch = new CountDownLatch(1);
+        // One more than allowed, to tell a full result from a truncated one
+        haystack.read(filter, MAX_POINTS + 1, new Handler<HGrid>() {
+            @Override
+            public void handle(HGrid grid) {
+                result[0] = grid;
+                latch.countDown();
+            }
+        });
+        if (!latch.await(haystack.getReadTimeout() * 2L, TimeUnit.SECONDS)) {
+            throw new RuntimeException("read timed out: " + filter);
+        }
+        List<Cursor> cursors = new ArrayList<>();
+        if (result[0] == null) {
+            return cursors;
+        }
+        if (result[0].numRows() > MAX_POINTS) {
+            throw new IllegalArgumentException(
+                    "More than " + MAX_POINTS + " points match: " + filter);
+        }
+        Set<String> names = new HashSet<>();
+        Iterator<?> it = result[0].iterator();
+        while (it.hasNext()) {
+            HRow row = (HRow) it.next();
+            HVal id = row.get("id", false);
+            if (!(id instanceof HRef)) {
+                continue;
+            }
+            HRef ref = (HRef) id;
+            HVal dis = row.get("dis", false);
+            String name = dis instanceof HStr ? ((HStr) dis).val : null;
+            if (name == null || !names.add(name)) {
+                name = ref.val;
+                names.add(name);
+            }
+            HTimeZone tz = HTimeZone.DEFAULT;
+            HVal vTz = row.get("tz", false);
+            if (vTz != null) {
+                try {
+                    tz = HTimeZone.make(vTz.toString(), false);
+                    if (tz == null) {
+                        tz = HTimeZone.DEFAULT;
+                    }
+                } catch (Exception ignored) {
+                }
+            }
+            HVal kind = row.get("kind", false);
+            HisReader reader = new HisReader(haystack, ref, tz,
+                                             kind != null ? kind.toString() : null);
+            IntervalProcessor interval = IntervalProcessor.parse(parser, rollup, tz.java);
+            cursors.add(new Cursor(ref, name, tz, reader.split(from, to), interval));
+        }
+        return cursors;
+    }
+
+    /**
+     * Merges the cursors on their timestamps and streams the rows.
+     */
+    private void write(Table table, List<Cursor> cursors) throws Exception {
+        HTimeZone tz = cursors.isEmpty() ? HTimeZone.DEFAULT : cursors.get(0).tz;
+        table.addColumn(new Parameter("timestamp", ValueType.TIME));
+        for (Cursor c : cursors) {
+            Parameter p = new Parameter(c.name, ValueType.DYNAMIC);
+            JsonObject meta = new JsonObject();
+            meta.put("id", c.id.toZinc());
+            p.setMetaData(meta);
+            table.addColumn(p);
+        }
+
+        TimestampEncoder encoder = new TimestampEncoder(tz.java);
+        BatchRow batch = new BatchRow();
+        int rows = 0;
+        while (true) {
+            load(cursors);
+            long time = Long.MAX_VALUE;
+            for (Cursor c : cursors) {
+                if (c.has && c.time < time) {
+                    time = c.time;
+                }
+            }
+            if (time == Long.MAX_VALUE) {
+                break;
+            }
+            Row row = new Row();
+            row.addValue(new Value(encoder.encode(time)));
+            for (Cursor c : cursors) {
+                if (c.has && c.time == time) {
+                    row.addValue(c.value);
+                    c.next();
+                } else {
+                    row.addValue(null);
+                }
+            }
+            batch.addRow(row);
+            if (++rows == BATCH_SIZE) {
+                if (!flush(table, batch)) {
+                    return;
+                }
+                batch = new BatchRow();
+                rows = 0;
+            }
+        }
+        if (rows > 0) {
+            flush(table, batch);
+        }
+    }
+
+    /**
+     * Reads the next page of every cursor that has run out of samples, no
+     * more at a time than the server allows for history reads. Cursors
+     * whose page was empty are loaded again until they have a sample or no
+     * pages are left.
+     */
+    private void load(List<Cursor> cursors) throws Exception {
+        int max = Math.max(1, haystack.getMaxConnections() - 1);
+        int parallel = Math.max(1, Math.min(haystack.getHisParallelism(), max));
+        while (true) {
+            List<Cursor> empty = new ArrayList<>();
+            for (Cursor c : cursors) {
+                if (c.needsPage()) {
+                    empty.add(c);
+                }
+            }
+            if (empty.isEmpty()) {
+                return;
+            }
+            Deque<FutureTask<HisReader.Page>> pending = new ArrayDeque<>();
+            Deque<Cursor> owners = new ArrayDeque<>();
+            Iterator<Cursor> it = empty.iterator();
+            try {
+                while (it.hasNext() || !pending.isEmpty()) {
+                    while (it.hasNext() && pending.size() < parallel) {
+                        Cursor c = it.next();
+                        FutureTask<HisReader.Page> task = new FutureTask<>(c.nextRead());
+                        pending.add(task);
+                        owners.add(c);
+                        haystack.getHisExecutor().execute(task);
+                    }
+                    FutureTask<HisReader.Page> head = pending.poll();
+                    // Runs the read here if no thread has picked it up yet
+                    head.run();
+                    owners.poll().setPage(head.get());
+                }
+            } finally {
+                for (FutureTask<HisReader.Page> task : pending) {
+                    task.cancel(true);
+                }
+            }
+        }
+    }
+
+    private static boolean flush(Table table, BatchRow batch) {
+        // Don't keep building rows for a requester that never opens the stream
+        if (table.waitForStream(60000, true, true)) {
+            table.addBatchRows(batch);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Walks the history of a point page by page. The current sample is in
+     * {@link #time} and {@link #value} while {@link #has} is set.
+     */
+    private static class Cursor {
+
+        final HRef id;
+        final String name;
+        final HTimeZone tz;
+        private final Iterator<HisReader.PageRead> reads;
+        private final IntervalProcessor interval;
+        private Calendar calendar;
+
+        private HisReader.Page page;
+        private int index;
+        private long last = Long.MIN_VALUE;
+        private boolean completed;
+
+        boolean has;
+        long time;
+        Value value;
+
+        Cursor(HRef id,
+               String name,
+               HTimeZone tz,
+               List<HisReader.PageRead> reads,
+               IntervalProcessor interval) {
+            this.id = id;
+            this.name = name;
+            this.tz = tz;
+            this.reads = reads.iterator();
+            this.interval = interval;
+        }
+
+        boolean needsPage() {
+            if (has) {
+                return false;
+            }
+            advance();
+            return !has && page == null && reads.hasNext();
+        }
+
+        HisReader.PageRead nextRead() {
+            return reads.next();
+        }
+
+        void setPage(HisReader.Page page) {
+            if (page == null) {
+                // The server is disabled, nothing more can be read
+                while (reads.hasNext()) {
+                    reads.next();
+                }
+            }
+            this.page = page;
+            index = 0;
+            advance();
+        }
+
+        void next() {
+            has = false;
+            advance();
+        }
+
+        /**
+         * Moves to the next sample of the current page, or completes the
+         * interval once the last page is done.
+         */
+        private void advance() {
+            while (!has && page != null) {
+                int size = page.segment != null ? page.segment.size() : page.grid.numRows();
+                if (index >= size) {
+                    page = null;
+                    break;
+                }
+                long t;
+                if (page.segment != null) {
+                    t = page.segment.getTime(index);
+                    if (t > last) {
+                        offer(t, new Value(page.segment.getValue(index)));
+                    }
+                } else {
+                    HRow row = page.grid.row(index);
+                    t = ((HDateTime) row.get("ts", false)).millis();
+                    if (t > last) {
+                        offer(t, Utils.hvalToVal(row.get("val", false)));
+                    }
+                }
+                last = Math.max(last, t);
+                index++;
+            }
+            if (!has && page == null && !reads.hasNext() && !completed) {
+                completed = true;
+                if (interval != null) {
+                    offer(interval.complete());
+                }
+            }
+        }
+
+        private void offer(long t, Value v) {
+            if (interval == null) {
+                set(t, v);
+            } else {
+                offer(interval.getRowUpdate(new QueryData(v, t), t));
+            }
+        }
+
+        /**
+         * Takes a row of the interval processor, which holds the encoded
+         * start of the interval and the rolled up value.
+         */
+        private void offer(Row row) {
+            if (row == null) {
+                return;
+            }
+            if (calendar == null) {
+                calendar = Calendar.getInstance(tz.java);
+            }
+            List<Value> values = row.getValues();
+            TimeUtils.decode(values.get(0).getString(), calendar);
+            set(calendar.getTimeInMillis(), values.get(1));
+        }
+
+        private void set(long t, Value v) {
+            has = true;
+            time = t;
+            value = v;
+        }
+    }
+}
@@ -0,0 +1,275 @@
+package org.dsa.iot.haystack.actions;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.dsa.iot.dslink.util.TimeUtils;
+import org.dsa.iot.dslink.util.handler.Handler;
+import org.dsa.iot.haystack.Haystack;
+import org.dsa.iot.haystack.helpers.HisCache;
+import org.projecthaystack.HCol;
+import org.projecthaystack.HDateTime;
+import org.projecthaystack.HGrid;
+import org.projecthaystack.HGridBuilder;
+import org.projecthaystack.HRef;
+import org.projecthaystack.HStr;
+import org.projecthaystack.HTimeZone;
+import org.projecthaystack.HVal;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads the history of a point in pages. Cached days are served from the
+ * history cache, the complete days of the pages read from the server are
+ * stored in it, and every page is retried on its own.
+ */
+public class HisReader {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(HisReader.class);
+    private static final int MAX_RETRIES = 2;
+    // Days that ended more recently may still receive late samples
+    private static final long COMPLETE_AFTER = TimeUnit.HOURS.toMillis(1);
+
+    private final Haystack haystack;
+    private final HRef id;
+    private final HTimeZone tz;
+    private final boolean cacheable;
+
+    /**
+     * @param kind Kind of the point, only numeric points are cached. Null
+     *             if it isn't known.
+     */
+    public HisReader(Haystack haystack, HRef id, HTimeZone tz, String kind) {
+        this.haystack = haystack;
+        this.id = id;
+        this.tz = tz;
+        this.cacheable = kind == null || "number".equalsIgnoreCase(kind);
+    }
+
+    /**
+     * Splits a range into reads. Every complete day found in the history
+     * cache is read on its own, and the rest of the range goes out in
+     * pages. The complete days a page covers are stored once it is read.
+     */
+    public List<PageRead> split(long from, long to) {
+        List<PageRead> reads = new ArrayList<>();
+        if (!cacheable || haystack.getHisCacheBytes() <= 0) {
+            addPages(reads, from, to, new ArrayList<Day>());
+            return reads;
+        }
+        HisCache cache = haystack.getHisCache();
+        long complete = System.currentTimeMillis() - COMPLETE_AFTER;
+        Calendar cal = TimeUtils.reuseCalendar();
+        cal.setTimeZone(tz.java);
+        cal.setTimeInMillis(from);
+        TimeUtils.alignDay(cal);
+        long start = cal.getTimeInMillis();
+        long uncached = from;
+        List<Day> days = new ArrayList<>();
+        while (start < to) {
+            int key = cal.get(Calendar.YEAR) * 10000
+                    + (cal.get(Calendar.MONTH) + 1) * 100
+                    + cal.get(Calendar.DAY_OF_MONTH);
+            TimeUtils.addDays(1, cal);
+            long end = cal.getTimeInMillis();
+            if (start >= from && end <= to && end <= complete) {
+                Day day = new Day(String.valueOf(key), start, end);
+                if (cache.contains(id, day.key)) {
+                    addPages(reads, uncached, start, days);
+                    reads.add(new PageRead(start, end, day, null));
+                    uncached = end;
+                    days = new ArrayList<>();
+                } else {
+                    days.add(day);
+                }
+            }
+            start = end;
+        }
+        addPages(reads, uncached, to, days);
+        TimeUtils.recycleCalendar(cal);
+        return reads;
+    }
+
+    /**
+     * Splits an uncached part of a range into pages. A page that would end
+     * inside a complete day ends where the day starts instead, so the day
+     * can be stored from the next page. Days longer than a page are not
+     * stored.
+     *
+     * @param days The complete days in the range, in order.
+     */
+    private void addPages(List<PageRead> reads, long from, long to, List<Day> days) {
+        long page = TimeUnit.HOURS.toMillis(haystack.getHisPageHours());
+        if (page <= 0) {
+            page = Math.max(1, to - from);
+        }
+        int next = 0;
+        long start = from;
+        while (start < to) {
+            long end = Math.min(to, start + page);
+            List<Day> store = new ArrayList<>();
+            while (next < days.size() && days.get(next).end <= end) {
+                store.add(days.get(next++));
+            }
+            if (next < days.size() && days.get(next).start < end) {
+                if (days.get(next).start > start) {
+                    end = days.get(next).start;
+                } else {
+                    next++;
+                }
+            }
+            reads.add(new PageRead(start, end, null, store));
+            start = end;
+        }
+    }
+
+    /**
+     * Stores the complete days of a page in the cache.
+     */
+    private void store(HisCache cache, HGrid grid, List<Day> days) {
+        HCol ts = grid.col("ts", false);
+        if (ts == null) {
+            return;
+        }
+        int count = grid.numRows();
+        int row = 0;
+        for (Day day : days) {
+            while (row < count && time(grid, row, ts) < day.start) {
+                row++;
+            }
+            int first = row;
+            while (row < count && time(grid, row, ts) < day.end) {
+                row++;
+            }
+            cache.write(id, day.key, grid, first, row);
+        }
+    }
+
+    private static long time(HGrid grid, int row, HCol ts) {
+        return ((HDateTime) grid.row(row).get(ts, false)).millis();
+    }
+
+    /**
+     * Reads a range of history synchronously.
+     *
+     * @return The hisRead grid or null if the server is disabled.
+     * @throws InterruptedException When the read was cancelled.
+     */
+    public HGrid hisRead(long from, long to) throws InterruptedException {
+        StringBuilder buf = new StringBuilder();
+        buf.append(HDateTime.make(from, tz));
+        buf.append(',');
+        buf.append(HDateTime.make(to, tz));
+        HGridBuilder builder = new HGridBuilder();
+        builder.addCol("id");
+        builder.addCol("range");
+        builder.addRow(new HVal[]{
+                HRef.make(id.val),
+                HStr.make(buf.toString())
+        });
+
+        final HGrid[] result = new HGrid[1];
+        final CountDownLatch latch = new CountDownLatch(1);
+        haystack.call("hisRead", builder.toGrid(), new Handler<HGrid>() {
+            @Override
+            public void handle(HGrid grid) {
+                result[0] = grid;
+                latch.countDown();
+            }
+        });
+        if (!latch.await(haystack.getReadTimeout() * 2L, TimeUnit.SECONDS)) {
+            throw new RuntimeException("hisRead timed out: " + buf);
+        }
+        return result[0];
+    }
+
+    /**
+     * A page of history, either a hisRead grid or a cached day.
+     */
+    public static class Page {
+
+        final HGrid grid;
+        final HisCache.Segment segment;
+
+        Page(HGrid grid, HisCache.Segment segment) {
+            this.grid = grid;
+            this.segment = segment;
+        }
+    }
+
+    /**
+     * A complete day of history and its key in the history cache.
+     */
+    private static class Day {
+
+        final String key;
+        final long start;
+        final long end;
+
+        Day(String key, long start, long end) {
+            this.key = key;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    public class PageRead implements Callable<Page> {
+
+        private final long from;
+        private final long to;
+        private final Day day;
+        private final List<Day> store;
+
+        /**
+         * @param day   The cached day the range covers or null if the range
+         *              is a page.
+         * @param store The complete days of the page to store in the cache.
+         */
+        PageRead(long from, long to, Day day, List<Day> store) {
+            this.from = from;
+            this.to = to;
+            this.day = day;
+            this.store = store;
+        }
+
+        /**
+         * @return The page or null if the server is disabled.
+         */
+        @Override
+        public Page call() throws InterruptedException {
+            HisCache cache = haystack.getHisCache();
+            if (day != null) {
+                HisCache.Segment segment = cache.read(id, day.key, to);
+                if (segment != null) {
+                    return new Page(null, segment);
+                }
+            }
+            for (int attempt = 1; ; attempt++) {
+                try {
+                    HGrid grid = hisRead(from, to);
+                    if (grid == null) {
+                        return null;
+                    }
+                    if (Thread.interrupted()) {
+                        // Cancelled, the query no longer wants the page
+                        throw new InterruptedException();
+                    }
+                    if (day != null) {
+                        cache.write(id, day.key, grid, 0, grid.numRows());
+                    } else if (!store.isEmpty()) {
+                        store(cache, grid, store);
+                    }
+                    return new Page(grid, null);
+                } catch (RuntimeException x) {
+                    if (attempt > MAX_RETRIES || Thread.currentThread().isInterrupted()) {
+                        throw x;
+                    }
+                    LOGGER.debug("Retrying hisRead of {} ({})", id, x.getMessage());
+                }
+            }
+        }
+    }
+}
@@ -1,5 +1,9 @@
 package org.dsa.iot.haystack.actions;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -27,7 +31,9 @@ import org.projecthaystack.HDict;
 import org.projecthaystack.HDictBuilder;
 import org.projecthaystack.HGrid;
 import org.projecthaystack.HRef;
+import org.projecthaystack.HRow;
 import org.projecthaystack.client.HClient;
+import org.projecthaystack.io.HZincReader;
 
 /**
  * @author Samuel Grenier
@@ -35,6 +41,7 @@ import org.projecthaystack.client.HClient;
 public class InvokeActions {
 
     private static final Pattern PATTERN = Pattern.compile("(\\$\\w+)");
+    private static final int MAX_CACHED_ACTIONS = 256;
 
     public static Action getInvokeAction(final Haystack haystack,
                                          final HRef id,
@@ -143,10 +150,49 @@ public class InvokeActions {
         return a;
     }
 
+    /**
+     * Parses the actions grid of an entity. Many points share the same
+     * actions, so the parsed definitions are cached per server by the grid
+     * text.
+     */
+    public static List<ActionDef> getActions(Haystack haystack, String zinc) {
+        ActionCache cache = haystack.getActionCache();
+        List<ActionDef> defs = cache.get(zinc);
+        if (defs != null) {
+            return defs;
+        }
+        String text = zinc;
+        if (!text.endsWith("\n")) {
+            text += "\n";
+        }
+        HGrid grid = new HZincReader(text).readGrid();
+        defs = new ArrayList<>(grid.numRows());
+        Iterator<?> it = grid.iterator();
+        while (it.hasNext()) {
+            defs.add(parseAction((HRow) it.next()));
+        }
+        defs = Collections.unmodifiableList(defs);
+        cache.put(zinc, defs);
+        return defs;
+    }
+
+    public static void handleActions(Haystack haystack,
+                                     HRef id,
+                                     Node node,
+                                     String zinc) {
+        for (ActionDef def : getActions(haystack, zinc)) {
+            def.build(haystack, id, node);
+        }
+    }
+
     public static void handleAction(Haystack haystack,
                                     HRef id,
                                     Node node,
                                     HDict row) {
+        parseAction(row).build(haystack, id, node);
+    }
+
+    private static ActionDef parseAction(HDict row) {
         String dis = row.dis();
         String expr = row.getStr("expr");
 
@@ -168,11 +214,64 @@ public class InvokeActions {
             Parameter p = new Parameter(name, type);
             params.add(p);
         }
+        return new ActionDef(dis, params);
+    }
+
+    /**
+     * Parsed action of an actions grid.
+     */
+    public static class ActionDef {
+
+        private final String dis;
+        private final String name;
+        private final List<Parameter> params;
+
+        ActionDef(String dis, List<Parameter> params) {
+            this.dis = dis;
+            this.name = StringUtils.encodeName(dis);
+            this.params = params;
+        }
 
-        dis = StringUtils.encodeName(dis);
-        NodeBuilder b = Utils.getBuilder(node, dis);
-        b.setSerializable(false);
-        b.setAction(getInvokeAction(haystack, id, dis, params));
-        b.build();
+        public String getDis() {
+            return dis;
+        }
+
+        public Node build(Haystack haystack, HRef id, Node node) {
+            // Each action gets its own parameters, the definition is shared
+            List<Parameter> copy = new ArrayList<>(params.size());
+            for (Parameter p : params) {
+                copy.add(new Parameter(p.getName(), p.getType()));
+            }
+            NodeBuilder b = Utils.getBuilder(node, name);
+            b.setSerializable(false);
+            b.setAction(getInvokeAction(haystack, id, name, copy));
+            return b.build();
+        }
+    }
+
+    /**
+     * LRU cache of parsed actions grids of a server.
+     */
+    public static class ActionCache {
+
+        private final Map<String, List<ActionDef>> cache
+                = new LinkedHashMap<String, List<ActionDef>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, List<ActionDef>> eldest) {
+                return size() > MAX_CACHED_ACTIONS;
+            }
+        };
+
+        synchronized List<ActionDef> get(String zinc) {
+            return cache.get(zinc);
+        }
+
+        synchronized void put(String zinc, List<ActionDef> defs) {
+            cache.put(zinc, defs);
+        }
+
+        public synchronized void clear() {
+            cache.clear();
+        }
     }
 }
@@ -1,5 +1,7 @@
 package org.dsa.iot.haystack.actions;
 
+import java.util.ArrayList;
+import java.util.List;
 import org.dsa.iot.dslink.node.Node;
 import org.dsa.iot.dslink.node.NodeBuilder;
 import org.dsa.iot.dslink.node.Permission;
@@ -88,7 +90,8 @@ public class ServerActions {
             @Override
             public void handle(ActionResult event) {
                 node.getParent().removeChild(node, false);
-                haystack.stop();
+                haystack.destroy();
+                haystack.deleteData();
                 LOGGER.info("Removed server {}", node.getPath());
             }
         });
@@ -108,6 +111,20 @@ public class ServerActions {
                 Value vConnTimeout = event.getParameter("Connect Timeout");
                 Value vReadTimeout = event.getParameter("Read Timeout");
                 Value vMaxConn = event.getParameter("Max Connections");
+                Value vPollThreads = event.getParameter("Poll Threads");
+                Value vRefresh = event.getParameter("Refresh Rate");
+                Value vLease = event.getParameter("Watch Lease");
+                Value vChunk = event.getParameter("Subscribe Chunk Size");
+                Value vDepth = event.getParameter("Prefetch Depth");
+                Value vPrefetch = event.getParameter("Prefetch Concurrency");
+                Value vNavMode = event.getParameter("Nav Mode");
+                Value vBudget = event.getParameter("Node Budget");
+                Value vCompact = event.getParameter("Compact Tags");
+                Value vNodeTags = event.getParameter("Node Tags");
+                Value vPage = event.getParameter("History Page Hours");
+                Value vHisParallel = event.getParameter("History Parallelism");
+                Value vHisCache = event.getParameter("History Cache MB");
+                Value vPushdown = event.getParameter("Rollup Pushdown");
 
                 String url = vUrl.getString();
                 String user = vUser.getString();
@@ -131,6 +148,48 @@ public class ServerActions {
                 int readTimeout = (int) (vReadTimeout.getNumber().doubleValue() * 1000);
                 int maxConn = vMaxConn.getNumber().intValue();
                 haystack.setMaxConnections(maxConn);
+                if (vPollThreads != null) {
+                    haystack.setPollThreads(Math.max(1, vPollThreads.getNumber().intValue()));
+                }
+                if (vRefresh != null) {
+                    haystack.setRefreshRate(Math.max(0, vRefresh.getNumber().intValue()));
+                }
+                if (vLease != null) {
+                    haystack.setWatchLease(Math.max(0, vLease.getNumber().intValue()));
+                }
+                if (vChunk != null) {
+                    haystack.setSubChunkSize(Math.max(1, vChunk.getNumber().intValue()));
+                }
+                if (vDepth != null) {
+                    haystack.setPrefetchDepth(Math.max(0, vDepth.getNumber().intValue()));
+                }
+                if (vPrefetch != null) {
+                    haystack.setPrefetchConcurrency(Math.max(1, vPrefetch.getNumber().intValue()));
+                }
+                if (vNavMode != null) {
+                    haystack.setNavMode(vNavMode.getString());
+                }
+                if (vBudget != null) {
+                    haystack.setNodeBudget(Math.max(0, vBudget.getNumber().intValue()));
+                }
+                if (vCompact != null) {
+                    haystack.setCompactTags(vCompact.getBool());
+                }
+                if (vNodeTags != null) {
+                    haystack.setNodeTags(vNodeTags.getString());
+                }
+                if (vPage != null) {
+                    haystack.setHisPageHours(Math.max(0, vPage.getNumber().intValue()));
+                }
+                if (vHisParallel != null) {
+                    haystack.setHisParallelism(Math.max(1, vHisParallel.getNumber().intValue()));
+                }
+                if (vHisCache != null) {
+                    haystack.setHisCacheMB(Math.max(0, vHisCache.getNumber().intValue()));
+                }
+                if (vPushdown != null) {
+                    haystack.setRollupPushdown(vPushdown.getBool());
+                }
 
                 haystack.editConnection(url, user, pass, pollRate, connTimeout, readTimeout,
                                         maxConn, vEnabled.getBool());
@@ -176,6 +235,54 @@ public class ServerActions {
         a.addParameter(new Parameter(
                 "Max Connections", ValueType.NUMBER, node.getConfig("maxConnections"))
                                .setDescription("Max concurrent requests to server"));
+        a.addParameter(new Parameter(
+                "Poll Threads", ValueType.NUMBER, node.getConfig("pollThreads"))
+                               .setDescription("Threads used to apply poll results"));
+        a.addParameter(new Parameter(
+                "Refresh Rate", ValueType.NUMBER, node.getConfig("refreshRate"))
+                               .setDescription("Minutes between full watch refreshes, 0 to disable"));
+        a.addParameter(new Parameter(
+                "Watch Lease", ValueType.NUMBER, node.getConfig("watchLease"))
+                               .setDescription("Watch lease in seconds, 0 for the server default"));
+        a.addParameter(new Parameter(
+                "Subscribe Chunk Size", ValueType.NUMBER, node.getConfig("subChunkSize"))
+                               .setDescription("Max ids sent in a single watchSub"));
+        a.addParameter(new Parameter(
+                "Prefetch Depth", ValueType.NUMBER, node.getConfig("prefetchDepth"))
+                               .setDescription("Nav levels to prefetch on connect, 0 to disable"));
+        a.addParameter(new Parameter(
+                "Prefetch Concurrency", ValueType.NUMBER, node.getConfig("prefetchConcurrency"))
+                               .setDescription("Max navs prefetched at the same time"));
+        {
+            List<String> enums = new ArrayList<>();
+            enums.add(Haystack.NAV_MODE_NAV);
+            enums.add(Haystack.NAV_MODE_REFS);
+            Parameter p = new Parameter("Nav Mode", ValueType.makeEnum(enums));
+            p.setDescription("Build the tree with nav or from site, equip and point refs");
+            p.setDefaultValue(node.getConfig("navMode"));
+            a.addParameter(p);
+        }
+        a.addParameter(new Parameter(
+                "Node Budget", ValueType.NUMBER, node.getConfig("nodeBudget"))
+                               .setDescription("Max nodes before closed folders are pruned early, 0 for no limit"));
+        a.addParameter(new Parameter(
+                "Compact Tags", ValueType.BOOL, node.getConfig("compactTags"))
+                               .setDescription("Only curVal, his and the node tags get their own node"));
+        a.addParameter(new Parameter(
+                "Node Tags", ValueType.STRING, node.getConfig("nodeTags"))
+                               .setDescription("Comma separated tags kept as nodes in compact mode"));
+        a.addParameter(new Parameter(
+                "History Page Hours", ValueType.NUMBER, node.getConfig("hisPageHours"))
+                               .setDescription("Hours read per hisRead request, 0 for the whole range"));
+        a.addParameter(new Parameter(
+                "History Parallelism", ValueType.NUMBER, node.getConfig("hisParallelism"))
+                               .setDescription("Max hisRead pages of a query read at the same time"));
+        a.addParameter(new Parameter(
+                "History Cache MB", ValueType.NUMBER, node.getConfig("hisCacheMB"))
+                               .setDescription("Disk space for cached history, 0 to disable"));
+        a.addParameter(new Parameter(
+                "Rollup Pushdown", ValueType.BOOL, node.getConfig("rollupPushdown"))
+                               .setDescription("Roll up history on the server with Axon when possible"));
         return a;
     }
 
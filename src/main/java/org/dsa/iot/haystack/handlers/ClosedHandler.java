@@ -1,10 +1,8 @@
 package org.dsa.iot.haystack.handlers;
 
-import java.util.Map;
 import org.dsa.iot.dslink.node.Node;
-import org.dsa.iot.dslink.node.SubscriptionManager;
-import org.dsa.iot.dslink.node.value.Value;
 import org.dsa.iot.dslink.util.handler.Handler;
+import org.dsa.iot.haystack.Haystack;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -21,51 +19,11 @@ public class ClosedHandler implements Handler<Node> {
 
     @Override
     public void handle(Node event) {
-        {
-            Value val = new Value(0);
-            val.setSerializable(false);
-            event.setRoConfig("lu", val);
-        }
         LOGGER.debug("Wants to remove: {}", event.getPath());
-        Map<String, Node> children = event.getChildren();
-        if (children == null) {
-            return;
-        }
-        for (Node child : children.values()) {
-            if (child == null) {
-                continue;
-            }
-            Map<String, Node> nChildren = child.getChildren();
-            if (nChildren == null) {
-                continue;
-            }
-            for (Node n : nChildren.values()) {
-                if (n == null
-                        || (n.getValue() == null
-                        && n.getAction() == null)) {
-                    continue;
-                }
-                removeNodes(n);
-            }
-        }
-    }
-
-    private void removeNodes(Node node) {
-        if (node == null) {
-            return;
-        }
-        SubscriptionManager man = node.getLink().getSubscriptionManager();
-        Map<String, Node> children = node.getChildren();
-        if (children != null) {
-            for (Node n : children.values()) {
-                if (n != null && (n.getValue() == null)) {
-                    removeNodes(n);
-                }
-            }
-        }
-        if (!man.hasValueSub(node)) {
-            LOGGER.debug("Removed: {}", node.getPath());
-            node.getParent().removeChild(node, false);
+        Haystack haystack = event.getMetaData();
+        if (haystack != null) {
+            // Pruned later by the reaper unless it's listed again
+            haystack.getNavReaper().closed(event);
         }
     }
 
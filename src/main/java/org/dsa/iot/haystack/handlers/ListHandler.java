@@ -9,6 +9,7 @@ import org.dsa.iot.dslink.node.value.Value;
 import org.dsa.iot.dslink.util.handler.Handler;
 import org.dsa.iot.haystack.Haystack;
 import org.dsa.iot.haystack.Utils;
+import org.dsa.iot.haystack.helpers.NavCache;
 import org.dsa.iot.haystack.helpers.NavHelper;
 import org.projecthaystack.HGrid;
 import org.projecthaystack.HUri;
@@ -38,33 +39,31 @@ public class ListHandler implements Handler<Node> {
         if (haystack == null) {
             return;
         }
+        haystack.getNavReaper().listed(event);
+        final NavHelper helper = haystack.getNavHelper();
+        helper.materialize(event);
         if (!Utils.shouldUpdateList(event)) {
             return;
         }
-        final NavHelper helper = haystack.getNavHelper();
-        final Value vNav = event.getRoConfig("navId");
-        final HVal navId;
-        if (vNav != null) {
-            String navIdZinc = vNav.getString();
-            HVal navIdtemp;
-            try {
-                navIdtemp = new HZincReader(navIdZinc).readVal();
-            } catch (Exception e) {
-                navIdtemp = HUri.make(navIdZinc);
-            }
-            navId = navIdtemp;
-        } else {
-            navId = null;
-        }
+        final HVal navId = getNavId(event);
 
         Value val = new Value(System.currentTimeMillis());
         val.setSerializable(false);
         event.setRoConfig("lu", val);
 
+        final NavCache cache = haystack.getNavCache();
+        final String key = NavCache.key(navId);
+        final NavCache.Entry cached = cache.get(key);
         ScheduledThreadPoolExecutor stpe = helper.getStpe();
         stpe.execute(new Runnable() {
             @Override
             public void run() {
+                if (cached != null) {
+                    helper.iterateNavChildren(cached.getGrid(), event, false);
+                    if (!cached.isStale()) {
+                        return;
+                    }
+                }
                 if (navId != null) {
                     String path = event.getPath();
                     LOGGER.debug("Navigating: {} ({})", navId, path);
@@ -85,7 +84,12 @@ public class ListHandler implements Handler<Node> {
                                 String n = writer.toString();
                                 LOGGER.debug("Received nav: {}", n);
                             }
-                            helper.iterateNavChildren(nav, event, true);
+                            cache.put(key, nav);
+                            if (cached == null) {
+                                helper.iterateNavChildren(nav, event, true);
+                            } else {
+                                helper.applyNavDiff(cached.getGrid(), nav, event);
+                            }
                         }
                     });
                 } catch (Exception e) {
@@ -95,6 +99,22 @@ public class ListHandler implements Handler<Node> {
         });
     }
 
+    /**
+     * @return The navId of a folder, or null for the server itself.
+     */
+    public static HVal getNavId(Node node) {
+        Value vNav = node.getRoConfig("navId");
+        if (vNav == null) {
+            return null;
+        }
+        String navIdZinc = vNav.getString();
+        try {
+            return new HZincReader(navIdZinc).readVal();
+        } catch (Exception e) {
+            return HUri.make(navIdZinc);
+        }
+    }
+
     public static ListHandler get() {
         return HANDLER;
     }
@@ -16,6 +16,7 @@ import org.dsa.iot.haystack.Haystack;
 import org.dsa.iot.haystack.Utils;
 import org.dsa.iot.haystack.handlers.ListHandler;
 import org.projecthaystack.HGrid;
+import org.projecthaystack.HNum;
 import org.projecthaystack.HVal;
 import org.projecthaystack.HWatch;
 import org.projecthaystack.client.CallErrException;
@@ -50,6 +51,7 @@ public class ConnectionHelper {
     private ScheduledFuture<?> connectFuture;
     private HClient client;
     private HWatch watch;
+    private volatile long lastWatchAccess;
 
     public ConnectionHelper(Haystack haystack,
                             Handler<Void> watchEnabled,
@@ -106,30 +108,33 @@ public class ConnectionHelper {
 
     public void getWatch(final StateHandler<HWatch> onWatchReceived) {
         try {
+            HWatch watch;
             synchronized (lock) {
-                if (watch != null && !watch.isOpen()) {
-                    close();
+                if (this.watch != null && !this.watch.isOpen()) {
+                    this.watch = null;
                 }
+                watch = this.watch;
                 if (watch == null) {
                     getClient(new StateHandler<HClient>() {
                         @Override
                         public void handle(HClient event) {
                             synchronized (lock) {
-                                if (watch != null) {
+                                if (ConnectionHelper.this.watch != null) {
                                     return;
                                 }
-                                String id = "DSLink Haystack";
-                                watch = client.watchOpen(id, null);
+                                ConnectionHelper.this.watch = openWatch(client);
                                 if (watchEnabled != null) {
                                     watchEnabled.handle(null);
                                 }
                             }
                         }
                     });
-                } else {
-                    onWatchReceived.handle(watch);
                 }
             }
+            // Called outside the lock so watch requests can run in parallel
+            if (watch != null && onWatchReceived != null) {
+                onWatchReceived.handle(watch);
+            }
         } catch (Exception e) {
             if (e instanceof CallNetworkException) {
                 LOGGER.warn("Connection closed", e);
@@ -140,6 +145,78 @@ public class ConnectionHelper {
         }
     }
 
+    /**
+     * Discards the current watch without closing the connection and opens a
+     * new one. Used when the server no longer knows the watch, such as
+     * after its lease expired.
+     */
+    public void reopenWatch() {
+        synchronized (lock) {
+            if (watch != null) {
+                try {
+                    watch.close();
+                } catch (Exception ignored) {
+                } finally {
+                    watch = null;
+                }
+            }
+        }
+        getWatch(null);
+    }
+
+    /**
+     * Records that the server has seen the watch, which renews its lease.
+     */
+    public void watchAccessed() {
+        lastWatchAccess = System.currentTimeMillis();
+    }
+
+    public long getLastWatchAccess() {
+        return lastWatchAccess;
+    }
+
+    /**
+     * @return The lease of the watch in milliseconds or 0 when unknown or
+     * the server hasn't created the watch yet.
+     */
+    public long getWatchLeaseMillis() {
+        HWatch watch = this.watch;
+        if (watch == null || watch.id() == null) {
+            return 0;
+        }
+        int lease = haystack.getWatchLease();
+        if (lease > 0) {
+            return TimeUnit.SECONDS.toMillis(lease);
+        }
+        HNum num = watch.lease();
+        if (num == null) {
+            return 0;
+        }
+        String unit = num.unit;
+        double val = num.val;
+        if (unit == null || "s".equals(unit) || "sec".equals(unit)) {
+            return (long) (val * 1000);
+        } else if ("ms".equals(unit)) {
+            return (long) val;
+        } else if ("min".equals(unit)) {
+            return (long) (val * 60000);
+        } else if ("h".equals(unit) || "hr".equals(unit)) {
+            return (long) (val * 3600000);
+        }
+        return 0;
+    }
+
+    private HWatch openWatch(HClient client) {
+        int lease = haystack.getWatchLease();
+        HNum hLease = null;
+        if (lease > 0) {
+            hLease = HNum.make(lease, "s");
+        }
+        HWatch watch = client.watchOpen("DSLink Haystack", hLease);
+        watchAccessed();
+        return watch;
+    }
+
     public void getClient(StateHandler<HClient> onClientReceived) {
         Semaphore semaphore = maxConnections;
         try {
@@ -252,23 +329,26 @@ public class ConnectionHelper {
                         }
                     }
 
+                    // Set before the watch opens, so the progress of the
+                    // resubscribe isn't overwritten
+                    statusNode.setValue(new Value("Connected"));
                     if (watchEnabled != null && watchDisabled != null) {
                         boolean supportsWatch = ops.contains("watchSub");
                         if (supportsWatch) {
-                            watch = client.watchOpen("DSLink Haystack", null);
+                            watch = openWatch(client);
                             watchEnabled.handle(null);
                         } else {
                             watchDisabled.handle(null);
                             LOGGER.warn("watchSub disabled for {}", url);
                         }
                     }
+                    haystack.getNavPrefetcher().start();
 
                     Handler<HClient> handler;
                     while ((handler = queue.poll()) != null) {
                         handler.handle(client);
                     }
                 }
-                statusNode.setValue(new Value("Connected"));
                 if (onConnected != null) {
                     onConnected.handle(client);
                 }
@@ -0,0 +1,195 @@
+package org.dsa.iot.haystack.helpers;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.dsa.iot.haystack.Haystack;
+import org.projecthaystack.HDict;
+import org.projecthaystack.HDictBuilder;
+import org.projecthaystack.HGrid;
+import org.projecthaystack.HRef;
+import org.projecthaystack.HRow;
+import org.projecthaystack.HVal;
+import org.projecthaystack.client.HClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * LRU cache of entity records with a time to live. Concurrent misses of
+ * the same id share a single request, and misses of different ids that
+ * arrive close together are loaded with one readByIds. Ids the server
+ * doesn't know are remembered for a shorter time.
+ */
+public class EntityCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(EntityCache.class);
+    private static final long BATCH_DELAY = 20;
+    private static final int MAX_BATCH = 500;
+    private static final int MAX_SIZE = 10000;
+    private static final long TTL = TimeUnit.MINUTES.toMillis(5);
+    private static final long MISS_TTL = TimeUnit.SECONDS.toMillis(30);
+    private static final long WAIT = 10;
+
+    private final Map<String, Entry> cache = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > MAX_SIZE;
+        }
+    };
+    private final Map<String, Pending> pending = new HashMap<>();
+    private final Haystack haystack;
+    private List<HRef> batch;
+
+    public EntityCache(Haystack haystack) {
+        this.haystack = haystack;
+    }
+
+    /**
+     * Blocks until the entity is loaded, for at most 10 seconds.
+     *
+     * @return The entity or null if it doesn't exist or couldn't be read.
+     */
+    public HDict get(HRef id) {
+        String key = id.val;
+        Pending p;
+        synchronized (this) {
+            Entry e = cache.get(key);
+            if (e != null) {
+                long ttl = e.dict != null ? TTL : MISS_TTL;
+                if (System.currentTimeMillis() - e.time < ttl) {
+                    return e.dict;
+                }
+                cache.remove(key);
+            }
+            p = pending.get(key);
+            if (p != null && p.isStale()) {
+                // The request never completed, try again
+                p = null;
+            }
+            if (p == null) {
+                p = new Pending();
+                pending.put(key, p);
+                enqueue(id);
+            }
+        }
+        try {
+            p.latch.await(WAIT, TimeUnit.SECONDS);
+        } catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+        }
+        return p.dict;
+    }
+
+    public synchronized void clear() {
+        cache.clear();
+    }
+
+    private void enqueue(HRef id) {
+        if (batch == null) {
+            batch = new ArrayList<>();
+            haystack.getStpe().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    List<HRef> ids;
+                    synchronized (EntityCache.this) {
+                        ids = batch;
+                        batch = null;
+                    }
+                    load(ids);
+                }
+            }, BATCH_DELAY, TimeUnit.MILLISECONDS);
+        }
+        batch.add(id);
+    }
+
+    private void load(List<HRef> ids) {
+        for (int i = 0; i < ids.size(); i += MAX_BATCH) {
+            List<HRef> chunk = ids.subList(i, Math.min(ids.size(), i + MAX_BATCH));
+            final HRef[] refs = chunk.toArray(new HRef[chunk.size()]);
+            try {
+                // The handler may run later if the connection isn't up yet
+                haystack.getConnHelper().getClient(new StateHandler<HClient>() {
+                    @Override
+                    public void handle(HClient event) {
+                        Map<String, HDict> loaded = new HashMap<>();
+                        boolean read = false;
+                        try {
+                            if (event == null) {
+                                return;
+                            }
+                            HGrid grid = event.readByIds(refs, false);
+                            for (int r = 0; r < grid.numRows(); r++) {
+                                HRow row = grid.row(r);
+                                HVal id = row.get("id", false);
+                                if (id instanceof HRef) {
+                                    HDict dict = new HDictBuilder().add(row).toDict();
+                                    loaded.put(((HRef) id).val, dict);
+                                }
+                            }
+                            read = true;
+                        } finally {
+                            complete(refs, loaded, read);
+                        }
+                    }
+                });
+            } catch (Exception x) {
+                LOGGER.warn("Unable to read {} entities", refs.length, x);
+                complete(refs, new HashMap<String, HDict>(), false);
+            }
+        }
+    }
+
+    /**
+     * @param read Whether the ids were read, so those without a record
+     *             don't exist on the server.
+     */
+    private void complete(HRef[] refs, Map<String, HDict> loaded, boolean read) {
+        long now = System.currentTimeMillis();
+        List<Pending> done = new ArrayList<>(refs.length);
+        synchronized (this) {
+            for (HRef ref : refs) {
+                HDict dict = loaded.get(ref.val);
+                if (dict != null || read) {
+                    cache.put(ref.val, new Entry(dict, now));
+                }
+                Pending p = pending.get(ref.val);
+                if (p != null) {
+                    pending.remove(ref.val);
+                    p.dict = dict;
+                    done.add(p);
+                }
+            }
+        }
+        for (Pending p : done) {
+            p.latch.countDown();
+        }
+    }
+
+    private static class Entry {
+
+        // Null for an id the server doesn't have
+        final HDict dict;
+        final long time;
+
+        Entry(HDict dict, long time) {
+            this.dict = dict;
+            this.time = time;
+        }
+    }
+
+    private class Pending {
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        final long created = System.currentTimeMillis();
+        volatile HDict dict;
+
+        boolean isStale() {
+            long timeout = TimeUnit.SECONDS.toMillis(haystack.getReadTimeout());
+            return System.currentTimeMillis() - created > timeout * 2;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package org.dsa.iot.haystack.helpers;
+
+import java.util.Arrays;
+import org.dsa.iot.dslink.node.value.Value;
+
+/**
+ * Fixed size buffer of history samples kept in primitive columns. Numbers
+ * and booleans are stored unboxed and only other values are held as
+ * objects. The buffer is reused after every flush so streaming a long range
+ * doesn't allocate per sample.
+ */
+public class HisBuffer {
+
+    private static final byte OBJECT = 0;
+    private static final byte NUMBER = 1;
+    private static final byte BOOL = 2;
+
+    private final long[] times;
+    private final double[] numbers;
+    private final boolean[] bools;
+    private final byte[] types;
+    private final Value[] values;
+    private int size;
+
+    public HisBuffer(int capacity) {
+        times = new long[capacity];
+        numbers = new double[capacity];
+        bools = new boolean[capacity];
+        types = new byte[capacity];
+        values = new Value[capacity];
+    }
+
+    /**
+     * @return Whether the buffer is full.
+     */
+    public boolean add(long time, double value) {
+        times[size] = time;
+        numbers[size] = value;
+        types[size] = NUMBER;
+        values[size] = null;
+        return ++size == times.length;
+    }
+
+    /**
+     * @return Whether the buffer is full.
+     */
+    public boolean add(long time, boolean value) {
+        times[size] = time;
+        bools[size] = value;
+        types[size] = BOOL;
+        values[size] = null;
+        return ++size == times.length;
+    }
+
+    /**
+     * @return Whether the buffer is full.
+     */
+    public boolean add(long time, Value value) {
+        times[size] = time;
+        types[size] = OBJECT;
+        values[size] = value;
+        return ++size == times.length;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public long getTime(int i) {
+        return times[i];
+    }
+
+    /**
+     * @return The sample as a value, numbers and booleans are boxed here.
+     */
+    public Value getValue(int i) {
+        switch (types[i]) {
+            case NUMBER:
+                return new Value(numbers[i]);
+            case BOOL:
+                return new Value(bools[i]);
+            default:
+                return values[i];
+        }
+    }
+
+    public void clear() {
+        Arrays.fill(values, 0, size, null);
+        size = 0;
+    }
+}
@@ -0,0 +1,370 @@
+package org.dsa.iot.haystack.helpers;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.dsa.iot.haystack.Haystack;
+import org.dsa.iot.haystack.Utils;
+import org.projecthaystack.HCol;
+import org.projecthaystack.HDateTime;
+import org.projecthaystack.HGrid;
+import org.projecthaystack.HNum;
+import org.projecthaystack.HRef;
+import org.projecthaystack.HRow;
+import org.projecthaystack.HVal;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Disk cache of numeric history, one segment file per point and day. A
+ * segment holds a header with the row count and the time it was written,
+ * followed by the timestamps and then the values. Only complete days are
+ * cached, and a day written soon after it ended is read again from the
+ * server now and then until it has settled. The least recently used
+ * segments are deleted once the cache grows past its size limit. A url
+ * file in the cache directory holds the URL of the server, and the cache
+ * is wiped when it doesn't match.
+ */
+public class HisCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(HisCache.class);
+    private static final String EXT = ".his";
+    private static final String URL_FILE = "url";
+    private static final int MAGIC = 0x48495332; // HIS2
+    private static final int HEADER = 16;
+    // Samples may still arrive late for a while after a day ended
+    private static final long SETTLED_AFTER = TimeUnit.DAYS.toMillis(1);
+    private static final long REVALIDATE_AFTER = TimeUnit.HOURS.toMillis(1);
+
+    private final Map<File, Long> segments = new LinkedHashMap<>(16, 0.75f, true);
+    private final Haystack haystack;
+    private final File dir;
+    private long size;
+    private String url;
+    private boolean deleted;
+
+    public HisCache(Haystack haystack, File dir, String url) {
+        this.haystack = haystack;
+        this.dir = dir;
+        this.url = url;
+        if (url.equals(readUrl())) {
+            scan();
+        } else {
+            wipe();
+        }
+    }
+
+    /**
+     * Wipes the cache when the server points to another URL.
+     */
+    public synchronized void setUrl(String url) {
+        if (url.equals(this.url)) {
+            return;
+        }
+        this.url = url;
+        wipe();
+    }
+
+    /**
+     * Deletes the cache directory, nothing is cached afterwards.
+     */
+    public synchronized void delete() {
+        deleted = true;
+        wipe();
+        dir.delete();
+    }
+
+    /**
+     * @return Whether a segment of the day is cached, even if it may be due
+     * to be read again.
+     */
+    public synchronized boolean contains(HRef id, String day) {
+        return segments.containsKey(getFile(id, day));
+    }
+
+    /**
+     * Segments are read into memory rather than mapped, so they can be
+     * replaced and deleted while a query still uses them.
+     *
+     * @param end End of the day, used to tell whether it has settled.
+     * @return The cached day or null if it isn't cached or is due to be
+     * read again.
+     */
+    public Segment read(HRef id, String day, long end) {
+        File file = getFile(id, day);
+        synchronized (this) {
+            if (segments.get(file) == null) {
+                return null;
+            }
+        }
+        try {
+            ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+            if (buf.limit() < HEADER || buf.getInt(0) != MAGIC) {
+                throw new IOException("Unknown segment format");
+            }
+            int count = buf.getInt(4);
+            long written = buf.getLong(8);
+            if (count <= 0 || buf.limit() != HEADER + count * 16L) {
+                throw new IOException("Truncated segment");
+            }
+            long now = System.currentTimeMillis();
+            if (written - end < SETTLED_AFTER && now - written >= REVALIDATE_AFTER) {
+                return null;
+            }
+            long[] times = new long[count];
+            double[] values = new double[count];
+            buf.position(HEADER);
+            buf.asLongBuffer().get(times);
+            buf.position(HEADER + count * 8);
+            buf.asDoubleBuffer().get(values);
+            file.setLastModified(now);
+            return new Segment(times, values);
+        } catch (IOException | RuntimeException x) {
+            LOGGER.warn("Unable to read history segment {}", file, x);
+            remove(file);
+            return null;
+        }
+    }
+
+    /**
+     * Caches the history of a complete day. Days without rows and days
+     * with values that aren't numbers are not cached.
+     *
+     * @param first Index of the first row of the day in the grid.
+     * @param last  Index after the last row of the day.
+     */
+    public void write(HRef id, String day, HGrid grid, int first, int last) {
+        long max = haystack.getHisCacheBytes();
+        if (max <= 0) {
+            return;
+        }
+        int count = last - first;
+        if (count <= 0) {
+            return;
+        }
+        long[] times = new long[count];
+        double[] values = new double[count];
+        HCol ts = grid.col("ts");
+        HCol val = grid.col("val");
+        for (int i = 0; i < count; i++) {
+            HRow row = grid.row(first + i);
+            HVal v = row.get(val, false);
+            if (!(v instanceof HNum)) {
+                return;
+            }
+            times[i] = ((HDateTime) row.get(ts, false)).millis();
+            values[i] = ((HNum) v).val;
+        }
+
+        File file = getFile(id, day);
+        File parent = file.getParentFile();
+        synchronized (this) {
+            if (deleted) {
+                return;
+            }
+            if (!parent.isDirectory()) {
+                parent.mkdirs();
+            }
+            if (!writeUrl()) {
+                return;
+            }
+        }
+        File tmp;
+        try {
+            // Concurrent reads of the same day each write their own file
+            tmp = Files.createTempFile(parent.toPath(), day, ".tmp").toFile();
+        } catch (IOException x) {
+            LOGGER.warn("Unable to write history segment {}", file, x);
+            return;
+        }
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(count);
+            out.writeLong(System.currentTimeMillis());
+            for (long t : times) {
+                out.writeLong(t);
+            }
+            for (double d : values) {
+                out.writeDouble(d);
+            }
+        } catch (IOException x) {
+            LOGGER.warn("Unable to write history segment {}", file, x);
+            tmp.delete();
+            return;
+        }
+        try {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException x) {
+            LOGGER.warn("Unable to write history segment {}", file, x);
+            tmp.delete();
+            return;
+        }
+        synchronized (this) {
+            Long prev = segments.put(file, file.length());
+            size += file.length() - (prev != null ? prev : 0);
+        }
+        evict(max);
+    }
+
+    private void evict(long max) {
+        List<File> evicted = new ArrayList<>();
+        synchronized (this) {
+            Iterator<Map.Entry<File, Long>> it = segments.entrySet().iterator();
+            while (size > max && it.hasNext()) {
+                Map.Entry<File, Long> entry = it.next();
+                size -= entry.getValue();
+                evicted.add(entry.getKey());
+                it.remove();
+            }
+        }
+        for (File file : evicted) {
+            if (!file.delete()) {
+                LOGGER.debug("Unable to delete history segment {}", file);
+            }
+        }
+    }
+
+    private void remove(File file) {
+        synchronized (this) {
+            Long len = segments.remove(file);
+            if (len != null) {
+                size -= len;
+            }
+        }
+        file.delete();
+    }
+
+    private String readUrl() {
+        File file = new File(dir, URL_FILE);
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+        } catch (IOException x) {
+            LOGGER.warn("Unable to read {}", file, x);
+            return null;
+        }
+    }
+
+    /**
+     * @return Whether the url file is in place.
+     */
+    private boolean writeUrl() {
+        File file = new File(dir, URL_FILE);
+        if (file.isFile()) {
+            return true;
+        }
+        try {
+            Files.write(file.toPath(), url.getBytes(StandardCharsets.UTF_8));
+            return true;
+        } catch (IOException x) {
+            LOGGER.warn("Unable to write {}", file, x);
+            return false;
+        }
+    }
+
+    /**
+     * Deletes every segment and the url file.
+     */
+    private synchronized void wipe() {
+        segments.clear();
+        size = 0;
+        File[] children = dir.listFiles();
+        if (children == null) {
+            return;
+        }
+        for (File child : children) {
+            File[] days = child.listFiles();
+            if (days != null) {
+                for (File day : days) {
+                    day.delete();
+                }
+            }
+            child.delete();
+        }
+    }
+
+    private File getFile(HRef id, String day) {
+        return new File(new File(dir, Utils.toFileName(id.val)), day + EXT);
+    }
+
+    private void scan() {
+        File[] points = dir.listFiles();
+        if (points == null) {
+            return;
+        }
+        List<File> files = new ArrayList<>();
+        for (File point : points) {
+            File[] days = point.listFiles();
+            if (days == null) {
+                continue;
+            }
+            for (File day : days) {
+                if (day.getName().endsWith(EXT)) {
+                    files.add(day);
+                } else {
+                    day.delete();
+                }
+            }
+        }
+        // Oldest first, so the map starts in least recently used order
+        Collections.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        synchronized (this) {
+            for (File file : files) {
+                long len = file.length();
+                segments.put(file, len);
+                size += len;
+            }
+        }
+        LOGGER.info("History cache of {} holds {} segments ({} bytes)",
+                    haystack.getNode().getName(), files.size(), size);
+    }
+
+    /**
+     * A cached day of history.
+     */
+    public static class Segment {
+
+        private final long[] times;
+        private final double[] values;
+
+        Segment(long[] times, double[] values) {
+            this.times = times;
+            this.values = values;
+        }
+
+        public int size() {
+            return times.length;
+        }
+
+        public long getTime(int i) {
+            return times[i];
+        }
+
+        public double getValue(int i) {
+            return values[i];
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package org.dsa.iot.haystack.helpers;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.dsa.iot.dslink.node.Node;
+import org.dsa.iot.dslink.node.value.Value;
+import org.dsa.iot.haystack.Utils;
+import org.dsa.iot.haystack.handlers.ListHandler;
+import org.projecthaystack.HGrid;
+import org.projecthaystack.HVal;
+
+/**
+ * Size bounded LRU cache of nav results keyed by navId. Listings are
+ * served from the cache right away and entries older than the list
+ * refresh time are revalidated in the background.
+ */
+public class NavCache {
+
+    private static final int MAX_SIZE = 1000;
+
+    private final Map<String, Entry> cache = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > MAX_SIZE;
+        }
+    };
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final Node hitRateNode;
+    private boolean dirty;
+
+    public NavCache(Node server) {
+        hitRateNode = Utils.getMetricNode(server, "navCacheHitRate", "Nav Cache Hit Rate");
+    }
+
+    public static String key(HVal navId) {
+        if (navId == null) {
+            return "";
+        }
+        return navId.toZinc();
+    }
+
+    public Entry get(String key) {
+        Entry entry;
+        synchronized (this) {
+            entry = cache.get(key);
+        }
+        if (entry != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+        updateHitRate();
+        return entry;
+    }
+
+    /**
+     * Returns the cached entry without affecting the hit rate.
+     */
+    public synchronized Entry peek(String key) {
+        return cache.get(key);
+    }
+
+    public synchronized void put(String key, HGrid grid) {
+        cache.put(key, new Entry(grid, System.currentTimeMillis()));
+        dirty = true;
+    }
+
+    /**
+     * Adds a grid restored from disk. It is served right away but counts
+     * as stale, so the first listing revalidates it.
+     */
+    public synchronized void load(String key, HGrid grid) {
+        if (!cache.containsKey(key)) {
+            cache.put(key, new Entry(grid, 0));
+        }
+    }
+
+    /**
+     * @return The cached grids if anything changed since the last call,
+     * otherwise null.
+     */
+    public synchronized Map<String, HGrid> snapshotIfDirty() {
+        if (!dirty) {
+            return null;
+        }
+        dirty = false;
+        Map<String, HGrid> grids = new LinkedHashMap<>();
+        for (Map.Entry<String, Entry> entry : cache.entrySet()) {
+            grids.put(entry.getKey(), entry.getValue().getGrid());
+        }
+        return grids;
+    }
+
+    public synchronized void clear() {
+        cache.clear();
+        dirty = true;
+    }
+
+    public synchronized int size() {
+        return cache.size();
+    }
+
+    private void updateHitRate() {
+        long h = hits.get();
+        long total = h + misses.get();
+        double rate = total == 0 ? 0 : (h * 100.0) / total;
+        hitRateNode.setValue(new Value(Math.round(rate * 10) / 10.0));
+    }
+
+    public static class Entry {
+
+        private final HGrid grid;
+        private final long time;
+
+        Entry(HGrid grid, long time) {
+            this.grid = grid;
+            this.time = time;
+        }
+
+        public HGrid getGrid() {
+            return grid;
+        }
+
+        public boolean isStale() {
+            return System.currentTimeMillis() - time > ListHandler.REFRESH_TIME;
+        }
+    }
+}
@@ -2,17 +2,24 @@ package org.dsa.iot.haystack.helpers;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import org.dsa.iot.dslink.node.Node;
 import org.dsa.iot.dslink.node.NodeBuilder;
 import org.dsa.iot.dslink.node.NodeListener;
+import org.dsa.iot.dslink.node.SubscriptionManager;
 import org.dsa.iot.dslink.node.value.Value;
 import org.dsa.iot.dslink.util.Objects;
 import org.dsa.iot.dslink.util.StringUtils;
 import org.dsa.iot.dslink.util.handler.Handler;
+import org.dsa.iot.dslink.util.json.JsonObject;
 import org.dsa.iot.haystack.Haystack;
 import org.dsa.iot.haystack.Utils;
 import org.dsa.iot.haystack.actions.Actions;
@@ -20,14 +27,15 @@ import org.dsa.iot.haystack.actions.GetHistory;
 import org.dsa.iot.haystack.actions.InvokeActions;
 import org.dsa.iot.haystack.handlers.ClosedHandler;
 import org.dsa.iot.haystack.handlers.ListHandler;
+import org.projecthaystack.HDict;
 import org.projecthaystack.HGrid;
+import org.projecthaystack.HGridBuilder;
 import org.projecthaystack.HMarker;
 import org.projecthaystack.HRef;
 import org.projecthaystack.HRow;
 import org.projecthaystack.HStr;
 import org.projecthaystack.HTimeZone;
 import org.projecthaystack.HVal;
-import org.projecthaystack.io.HZincReader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -40,11 +48,23 @@ public class NavHelper {
 
     private final ScheduledThreadPoolExecutor stpe;
     private final Haystack haystack;
-    private final Map<Node, SubscriptionController> subControllers = new HashMap<>();
+    private final ConcurrentMap<String, SubscriptionController> subControllers
+            = new ConcurrentHashMap<>();
+    private final Node subControllersNode;
+    private final Map<Node, HDict> navRows = new WeakHashMap<>();
+    private final Map<Node, HDict> lazyRows = new WeakHashMap<>();
+    private final Handler<Node> materializer = new Handler<Node>() {
+        @Override
+        public void handle(Node event) {
+            materialize(event);
+        }
+    };
 
     public NavHelper(Haystack haystack) {
         this.stpe = Objects.createDaemonThreadPool();
         this.haystack = haystack;
+        this.subControllersNode = Utils.getMetricNode(haystack.getNode(), "subControllers",
+                                                      "Subscription Controllers");
     }
 
     public void destroy() {
@@ -79,6 +99,10 @@ public class NavHelper {
 
             // Handle child
             String encoded = StringUtils.encodeName(name);
+            Node existing = node.getChild(encoded, false);
+            if (isUnchanged(existing, row)) {
+                continue;
+            }
             NodeBuilder builder = Utils.getBuilder(node, encoded);
             final HVal navId = row.get("navId", false);
             if (navId != null) {
@@ -99,34 +123,14 @@ public class NavHelper {
 
             builder.setSerializable(false);
             final Node child = builder.build();
-
-            // Handle writable
-            final HVal writable = row.get("writable", false);
-            if (writable instanceof HMarker) {
-                HRef id = row.id();
-                HVal hKind = row.get("kind", false);
-                String kind = hKind.toString();
-                Actions.getPointWriteAction(haystack, child, id, kind);
-            }
-
-            // Handle actions
-            HVal actions = row.get("actions", false);
-            if (actions instanceof HStr) {
-                String zinc = ((HStr) actions).val;
-                if (!zinc.endsWith("\n")) {
-                    zinc += "\n";
-                }
-                HZincReader reader = new HZincReader(zinc);
-                HGrid grid = reader.readGrid();
-                Iterator<?> it = grid.iterator();
-                HRef id = row.id();
-                while (it.hasNext()) {
-                    HRow r = (HRow) it.next();
-                    InvokeActions.handleAction(haystack, id, child, r);
-                }
+            if (existing == null) {
+                haystack.getNavReaper().added(1);
             }
 
-            iterateRow(child, row);
+            populateLazily(child, row);
+            synchronized (navRows) {
+                navRows.put(child, row);
+            }
 
             // Handle navId
             if (navId != null) {
@@ -136,6 +140,7 @@ public class NavHelper {
                     haystack.nav(navId, new Handler<HGrid>() {
                         @Override
                         public void handle(HGrid event) {
+                            haystack.getNavCache().put(NavCache.key(navId), event);
                             iterateNavChildren(event, child, false);
                         }
                     });
@@ -163,9 +168,14 @@ public class NavHelper {
                     n = node;
                 } else {
                     n = node.createChild(encodedRef, false).setHasChildren(true).build();
+                    haystack.getNavReaper().added(1);
                 }
             }
 
+            Node existing = n.getChild(encoded, false);
+            if (isUnchanged(existing, row)) {
+                continue;
+            }
             NodeBuilder builder = Utils.getBuilder(n, encoded);
             final HVal navId = row.get("navId", false);
             if (navId != null) {
@@ -186,34 +196,14 @@ public class NavHelper {
 
             builder.setSerializable(false);
             final Node child = builder.build();
-
-            // Handle writable
-            final HVal writable = row.get("writable", false);
-            if (writable instanceof HMarker) {
-                HRef id = row.id();
-                HVal hKind = row.get("kind", false);
-                String kind = hKind.toString();
-                Actions.getPointWriteAction(haystack, child, id, kind);
-            }
-
-            // Handle actions
-            HVal actions = row.get("actions", false);
-            if (actions instanceof HStr) {
-                String zinc = ((HStr) actions).val;
-                if (!zinc.endsWith("\n")) {
-                    zinc += "\n";
-                }
-                HZincReader reader = new HZincReader(zinc);
-                HGrid grid = reader.readGrid();
-                Iterator<?> it = grid.iterator();
-                HRef id = row.id();
-                while (it.hasNext()) {
-                    HRow r = (HRow) it.next();
-                    InvokeActions.handleAction(haystack, id, child, r);
-                }
+            if (existing == null) {
+                haystack.getNavReaper().added(1);
             }
 
-            iterateRow(child, row);
+            populateLazily(child, row);
+            synchronized (navRows) {
+                navRows.put(child, row);
+            }
 
             // Handle navId
             if (navId != null) {
@@ -223,6 +213,7 @@ public class NavHelper {
                     haystack.nav(navId, new Handler<HGrid>() {
                         @Override
                         public void handle(HGrid event) {
+                            haystack.getNavCache().put(NavCache.key(navId), event);
                             iterateNavChildren(event, child.getParent(), false);
                         }
                     });
@@ -234,7 +225,165 @@ public class NavHelper {
         }
     }
 
-    private void iterateRow(Node node, HRow row) {
+    /**
+     * Applies only the rows of a nav that differ from the previous nav of
+     * the same node and removes the children whose rows are gone.
+     */
+    public void applyNavDiff(HGrid previous, HGrid nav, Node node) {
+        Map<String, HRow> old = new HashMap<>();
+        Iterator<?> it = previous.iterator();
+        while (it.hasNext()) {
+            HRow row = (HRow) it.next();
+            String name = getName(row);
+            if (name != null) {
+                old.put(name, row);
+            }
+        }
+
+        List<HDict> changed = new ArrayList<>();
+        it = nav.iterator();
+        while (it.hasNext()) {
+            HRow row = (HRow) it.next();
+            String name = getName(row);
+            if (name == null) {
+                continue;
+            }
+            HRow prev = old.remove(name);
+            if (prev == null || !prev.equals(row)) {
+                changed.add(row);
+            }
+        }
+
+        if (!changed.isEmpty()) {
+            HDict[] rows = changed.toArray(new HDict[changed.size()]);
+            iterateNavChildren(HGridBuilder.dictsToGrid(rows), node, false);
+        } else {
+            Value lu = new Value(System.currentTimeMillis());
+            lu.setSerializable(false);
+            node.setRoConfig("lu", lu);
+        }
+
+        for (Map.Entry<String, HRow> entry : old.entrySet()) {
+            Node parent = node;
+            HVal ref = entry.getValue().get("equipRef", false);
+            if (ref instanceof HRef) {
+                String encodedRef = StringUtils.encodeName(((HRef) ref).val);
+                parent = node.getParent().getChild(encodedRef, false);
+                if (parent == null) {
+                    parent = node.getChild(encodedRef, false);
+                }
+                if (parent == null) {
+                    continue;
+                }
+            }
+            Node child = parent.getChild(StringUtils.encodeName(entry.getKey()), false);
+            if (child != null && !isSubscribed(child)) {
+                LOGGER.debug("Removed: {}", child.getPath());
+                parent.removeChild(child, false);
+                haystack.getNavReaper().added(-1 - NavReaper.count(child));
+                release(child);
+            }
+        }
+    }
+
+    /**
+     * Forgets the nav row a node was built from, so the next nav rebuilds
+     * it even if the row didn't change.
+     */
+    public void invalidate(Node node) {
+        synchronized (navRows) {
+            navRows.remove(node);
+        }
+    }
+
+    private boolean isUnchanged(Node child, HDict row) {
+        if (child == null) {
+            return false;
+        }
+        HDict prev;
+        synchronized (navRows) {
+            prev = navRows.get(child);
+        }
+        return prev != null && (prev == row || prev.equals(row));
+    }
+
+    /**
+     * Keeps the row of an entity until its node is listed or one of its
+     * tags is subscribed, instead of building the tag nodes right away.
+     * Nodes whose tags already exist are updated immediately.
+     */
+    public void populateLazily(Node child, HDict row) {
+        if (hasTags(child)) {
+            synchronized (lazyRows) {
+                lazyRows.remove(child);
+            }
+            populate(child, row);
+            return;
+        }
+        synchronized (lazyRows) {
+            lazyRows.put(child, row);
+        }
+        child.setHasChildren(true);
+        if (child.getRoConfig("navId") == null) {
+            child.getListener().setOnListHandler(materializer);
+        }
+    }
+
+    /**
+     * Builds the tag nodes of an entity that were deferred by
+     * {@link #populateLazily(Node, HDict)}.
+     *
+     * @return Whether the node had a deferred row.
+     */
+    public boolean materialize(Node node) {
+        HDict row;
+        synchronized (lazyRows) {
+            row = lazyRows.remove(node);
+        }
+        if (row == null) {
+            return false;
+        }
+        populate(node, row);
+        return true;
+    }
+
+    private static boolean hasTags(Node node) {
+        Map<String, Node> children = node.getChildren();
+        if (children != null) {
+            for (Node n : children.values()) {
+                if (n != null && n.getValue() != null) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Builds the actions and tag nodes of an entity.
+     */
+    public void populate(Node child, HDict row) {
+        int count = NavReaper.count(child);
+        // Handle writable
+        final HVal writable = row.get("writable", false);
+        if (writable instanceof HMarker) {
+            HRef id = row.id();
+            HVal hKind = row.get("kind", false);
+            String kind = hKind.toString();
+            Actions.getPointWriteAction(haystack, child, id, kind);
+        }
+
+        // Handle actions
+        HVal actions = row.get("actions", false);
+        if (actions instanceof HStr) {
+            InvokeActions.handleActions(haystack, row.id(), child, ((HStr) actions).val);
+        }
+
+        iterateRow(child, row);
+        haystack.getNavReaper().added(NavReaper.count(child) - count);
+    }
+
+    private void iterateRow(Node node, HDict row) {
         SubscriptionController subController = getSubController(node, row);
         Iterator<?> it = row.iterator();
         Node curVal = null;
@@ -243,6 +392,8 @@ public class NavHelper {
         String kind = null;
         String tz = null;
         boolean writable = false;
+        boolean compact = haystack.isCompactTags();
+        JsonObject tags = compact ? new JsonObject() : null;
         while (it.hasNext()) {
             Map.Entry entry = (Map.Entry) it.next();
             String name = (String) entry.getKey();
@@ -253,6 +404,25 @@ public class NavHelper {
                 continue;
             }
 
+            switch (name) {
+                case "id":
+                    id = val.toString();
+                    break;
+                case "kind":
+                    kind = val.toString();
+                    break;
+                case "tz":
+                    tz = val.toString();
+                    break;
+                case "writable":
+                    writable = val instanceof HMarker;
+                    break;
+            }
+            if (compact && !isNodeTag(name)) {
+                tags.put(name, Utils.valToObject(value));
+                continue;
+            }
+
             NodeBuilder builder = Utils.getBuilder(node, StringUtils.encodeName(name));
             builder.setValueType(value.getType());
             builder.setValue(value);
@@ -270,18 +440,6 @@ public class NavHelper {
                         hasAction = true;
                     }
                     break;
-                case "id":
-                    id = val.toString();
-                    break;
-                case "kind":
-                    kind = val.toString();
-                    break;
-                case "tz":
-                    tz = val.toString();
-                    break;
-                case "writable":
-                    writable = val instanceof HMarker;
-                    break;
                 default:
                     builder.setHasChildren(false);
             }
@@ -297,6 +455,10 @@ public class NavHelper {
                 subController.childSubscribed(child);
             }
         }
+        if (compact) {
+            putTags(node, tags, true);
+        }
+        removeStaleTags(node, row, compact);
         if (id != null) { //add getHistory and set
             HRef hid = HRef.make(id);
             if (his != null) {
@@ -304,7 +466,7 @@ public class NavHelper {
                 if (tz != null) {
                     htz = HTimeZone.make(tz, false);
                 }
-                new GetHistory(his, haystack, hid, htz);
+                new GetHistory(his, haystack, hid, htz, kind);
             }
             if ((curVal != null) && writable && (kind != null)) {
                 Actions.getSetAction(haystack, curVal, hid, kind);
@@ -312,21 +474,173 @@ public class NavHelper {
         }
     }
 
-    private SubscriptionController getSubController(Node node, HRow row) {
-        SubscriptionController subController = subControllers.get(node);
-        if (subController == null) {
-            subController = new SubscriptionController(node, haystack);
-            subControllers.put(node, subController);
+    /**
+     * @return Whether the tag gets its own node in compact tag mode, which
+     * is only the case for curVal, his and the configured node tags.
+     */
+    public boolean isNodeTag(String name) {
+        return "curVal".equals(name) || "his".equals(name)
+                || haystack.getNodeTags().contains(name);
+    }
+
+    /**
+     * Updates the map attribute that holds the tags without their own
+     * node in compact tag mode.
+     *
+     * @param complete Whether the tags come from a complete record, in
+     *                 which case tags missing from it are dropped.
+     * @return Whether any of the tags changed.
+     */
+    public boolean putTags(Node node, JsonObject tags, boolean complete) {
+        synchronized (node) {
+            Value current = node.getAttribute("tags");
+            JsonObject prev = current != null ? current.getMap() : null;
+            if (!complete && prev != null) {
+                JsonObject merged = new JsonObject();
+                for (Map.Entry<String, Object> entry : prev) {
+                    merged.put(entry.getKey(), entry.getValue());
+                }
+                for (Map.Entry<String, Object> entry : tags) {
+                    merged.put(entry.getKey(), entry.getValue());
+                }
+                tags = merged;
+            }
+            if (prev == null) {
+                if (tags.size() == 0) {
+                    return false;
+                }
+            } else if (isEqual(prev, tags)) {
+                return false;
+            }
+            if (tags.size() == 0) {
+                node.removeAttribute("tags");
+            } else {
+                Value value = new Value(tags);
+                value.setSerializable(false);
+                node.setAttribute("tags", value);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Removes the tag nodes that the record no longer has, and in compact
+     * tag mode those that aren't node tags anymore. Outside of compact tag
+     * mode the tags attribute is removed. Subscribed nodes are kept until
+     * a later update.
+     *
+     * @param row Complete record of the entity.
+     * @return The number of removed nodes.
+     */
+    public int removeStaleTags(Node node, HDict row, boolean compact) {
+        if (!compact && node.getAttribute("tags") != null) {
+            synchronized (node) {
+                node.removeAttribute("tags");
+            }
+        }
+        Map<String, Node> children = node.getChildren();
+        if (children == null) {
+            return 0;
+        }
+        Set<String> keep = new HashSet<>();
+        Iterator<?> it = row.iterator();
+        while (it.hasNext()) {
+            String name = (String) ((Map.Entry) it.next()).getKey();
+            if (!compact || isNodeTag(name)) {
+                keep.add(StringUtils.encodeName(name));
+            }
+        }
+        SubscriptionManager man = node.getLink().getSubscriptionManager();
+        int removed = 0;
+        for (Node child : new ArrayList<>(children.values())) {
+            // Nav folders and actions have no value
+            if (child == null
+                    || child.getValue() == null
+                    || child.getAction() != null
+                    || keep.contains(child.getName())
+                    || man.hasValueSub(child)) {
+                continue;
+            }
+            LOGGER.debug("Removed stale tag: {}", child.getPath());
+            node.removeChild(child, false);
+            removed += 1 + NavReaper.count(child);
         }
+        return removed;
+    }
 
-        final HVal id = row.get("id", false);
-        if (id != null) {
-            subController.setId((HRef) id);
+    private static boolean isEqual(JsonObject a, JsonObject b) {
+        if (a.size() != b.size()) {
+            return false;
         }
+        for (Map.Entry<String, Object> entry : a) {
+            Object other = b.get(entry.getKey());
+            if (other == null || !other.equals(entry.getValue())) {
+                return false;
+            }
+        }
+        return true;
+    }
 
+    private static boolean isSubscribed(Node node) {
+        SubscriptionManager man = node.getLink().getSubscriptionManager();
+        if (man.hasValueSub(node)) {
+            return true;
+        }
+        Map<String, Node> children = node.getChildren();
+        if (children != null) {
+            for (Node n : children.values()) {
+                if (n != null && man.hasValueSub(n)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Releases the subscription controller of a node once its tags are
+     * removed, unless some of them are still subscribed.
+     */
+    public void release(Node node) {
+        String key = StringUtils.decodeName(node.getName());
+        SubscriptionController controller = subControllers.get(key);
+        if (controller != null && controller.getNode() == node
+                && !controller.hasSubscriptions()) {
+            subControllers.remove(key, controller);
+            updateSubControllersMetric();
+        }
+    }
+
+    private SubscriptionController getSubController(Node node, HDict row) {
+        final HVal id = row.get("id", false);
+        if (!(id instanceof HRef)) {
+            // Nothing to subscribe to, don't register it
+            return new SubscriptionController(node, haystack);
+        }
+        String key = ((HRef) id).val;
+        SubscriptionController subController = subControllers.get(key);
+        if (subController != null && subController.getNode() != node
+                && !subController.hasSubscriptions()) {
+            // The entity moved to a different node
+            subControllers.remove(key, subController);
+            subController = null;
+        }
+        if (subController == null) {
+            subController = new SubscriptionController(node, haystack);
+            SubscriptionController prev = subControllers.putIfAbsent(key, subController);
+            if (prev != null) {
+                subController = prev;
+            }
+            updateSubControllersMetric();
+        }
+        subController.setId((HRef) id);
         return subController;
     }
 
+    private void updateSubControllersMetric() {
+        subControllersNode.setValue(new Value(subControllers.size()));
+    }
+
     private String getDisplayName(HRow row) {
         HVal val = row.get("navName", false);
         if (val != null) {
@@ -0,0 +1,157 @@
+package org.dsa.iot.haystack.helpers;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.dsa.iot.dslink.util.handler.Handler;
+import org.dsa.iot.haystack.Haystack;
+import org.projecthaystack.HGrid;
+import org.projecthaystack.HRow;
+import org.projecthaystack.HVal;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Crawls the nav tree breadth first into the nav cache so folders list
+ * instantly once they are expanded. The crawl is bounded by depth, runs a
+ * limited number of navs at a time and gives up as soon as the server
+ * responds slowly.
+ */
+public class NavPrefetcher {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(NavPrefetcher.class);
+    private static final long SLOW_NAV = 5000;
+    private static final int MAX_NAVS = 500;
+
+    private final AtomicInteger run = new AtomicInteger();
+    private final Haystack haystack;
+
+    public NavPrefetcher(Haystack haystack) {
+        this.haystack = haystack;
+    }
+
+    public void start() {
+        final int depth = haystack.getPrefetchDepth();
+        if (depth < 1) {
+            return;
+        }
+        int max = Math.max(1, haystack.getMaxConnections() - 1);
+        final int workers = Math.max(1, Math.min(haystack.getPrefetchConcurrency(), max));
+        final int id = run.incrementAndGet();
+        haystack.getTaskExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                crawl(id, depth, workers);
+            }
+        });
+    }
+
+    public void stop() {
+        run.incrementAndGet();
+    }
+
+    private void crawl(int id, int depth, int workers) {
+        AtomicBoolean abort = new AtomicBoolean();
+        AtomicInteger fetched = new AtomicInteger();
+        List<HVal> level = Collections.singletonList(null);
+        for (int d = 0; d <= depth && !level.isEmpty(); d++) {
+            level = crawlLevel(id, level, workers, abort, fetched);
+            if (abort.get() || run.get() != id) {
+                break;
+            }
+        }
+        LOGGER.info("Prefetched {} navs of {}{}", fetched.get(),
+                    haystack.getNode().getName(), abort.get() ? " (stopped early)" : "");
+    }
+
+    private List<HVal> crawlLevel(final int id,
+                                  final List<HVal> level,
+                                  int workers,
+                                  final AtomicBoolean abort,
+                                  final AtomicInteger fetched) {
+        final List<HVal> next = Collections.synchronizedList(new ArrayList<HVal>());
+        final AtomicInteger index = new AtomicInteger();
+        workers = Math.min(workers, level.size());
+        final CountDownLatch latch = new CountDownLatch(workers);
+        Runnable worker = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    int i;
+                    while ((i = index.getAndIncrement()) < level.size()) {
+                        if (abort.get() || run.get() != id) {
+                            return;
+                        }
+                        if (fetched.get() >= MAX_NAVS) {
+                            abort.set(true);
+                            return;
+                        }
+                        HGrid grid = fetch(level.get(i), abort, fetched);
+                        if (grid != null) {
+                            addNavIds(grid, next);
+                        }
+                    }
+                } finally {
+                    latch.countDown();
+                }
+            }
+        };
+        for (int i = 1; i < workers; i++) {
+            haystack.getTaskExecutor().execute(worker);
+        }
+        worker.run();
+        try {
+            latch.await();
+        } catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+            abort.set(true);
+        }
+        return new ArrayList<>(next);
+    }
+
+    private HGrid fetch(final HVal navId, AtomicBoolean abort, AtomicInteger fetched) {
+        final NavCache cache = haystack.getNavCache();
+        final String key = NavCache.key(navId);
+        NavCache.Entry cached = cache.peek(key);
+        if (cached != null && !cached.isStale()) {
+            return cached.getGrid();
+        }
+        final HGrid[] result = new HGrid[1];
+        long start = System.currentTimeMillis();
+        try {
+            haystack.nav(navId, new Handler<HGrid>() {
+                @Override
+                public void handle(HGrid event) {
+                    if (event != null) {
+                        cache.put(key, event);
+                        result[0] = event;
+                    }
+                }
+            });
+        } catch (Exception x) {
+            LOGGER.debug("Prefetch of {} failed", key, x);
+            abort.set(true);
+            return null;
+        }
+        fetched.incrementAndGet();
+        if (System.currentTimeMillis() - start > SLOW_NAV) {
+            LOGGER.debug("Server is slow, stopping prefetch");
+            abort.set(true);
+        }
+        return result[0];
+    }
+
+    private static void addNavIds(HGrid grid, List<HVal> out) {
+        Iterator<?> it = grid.iterator();
+        while (it.hasNext()) {
+            HVal navId = ((HRow) it.next()).get("navId", false);
+            if (navId != null) {
+                out.add(navId);
+            }
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package org.dsa.iot.haystack.helpers;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.dsa.iot.dslink.node.Node;
+import org.dsa.iot.dslink.node.SubscriptionManager;
+import org.dsa.iot.dslink.node.value.Value;
+import org.dsa.iot.haystack.Haystack;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Removes the tag nodes of closed nav folders in the background. A folder
+ * is pruned once it has stayed closed for a grace period, or earlier when
+ * the server holds more nodes than its budget, least recently listed
+ * first. Subscribed nodes are always kept.
+ */
+public class NavReaper {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(NavReaper.class);
+    private static final long GRACE = TimeUnit.MINUTES.toMillis(2);
+    private static final long INTERVAL = 30;
+    // The running count drifts with nodes built outside the nav
+    private static final long RECOUNT = TimeUnit.MINUTES.toMillis(10);
+
+    private final Map<Node, Long> closed = new HashMap<>();
+    // Ordered by the time each folder was last listed
+    private final Map<Node, Long> listed = new LinkedHashMap<>();
+    private final Set<Node> open = new HashSet<>();
+    private final AtomicInteger count = new AtomicInteger();
+    private final Haystack haystack;
+    private final ScheduledFuture<?> future;
+    private long counted;
+
+    public NavReaper(Haystack haystack) {
+        this.haystack = haystack;
+        future = haystack.getStpe().scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    reap();
+                } catch (Exception x) {
+                    LOGGER.warn("Unable to prune closed nodes", x);
+                }
+            }
+        }, INTERVAL, INTERVAL, TimeUnit.SECONDS);
+    }
+
+    public synchronized void listed(Node node) {
+        closed.remove(node);
+        open.add(node);
+        // Re-inserted so the map stays ordered by list time
+        listed.remove(node);
+        listed.put(node, System.currentTimeMillis());
+    }
+
+    public synchronized void closed(Node node) {
+        open.remove(node);
+        closed.put(node, System.currentTimeMillis());
+    }
+
+    /**
+     * Updates the running node count of the server.
+     *
+     * @param delta Number of nodes built, negative for removed nodes.
+     */
+    public void added(int delta) {
+        count.addAndGet(delta);
+    }
+
+    /**
+     * Counts the nodes of the server again on the next run, after the tree
+     * was rebuilt.
+     */
+    public synchronized void recount() {
+        counted = 0;
+    }
+
+    public void destroy() {
+        future.cancel(false);
+    }
+
+    private void reap() {
+        List<Node> expired = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            Iterator<Map.Entry<Node, Long>> it = closed.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Node, Long> entry = it.next();
+                if (now - entry.getValue() >= GRACE) {
+                    expired.add(entry.getKey());
+                }
+            }
+            // Forget the folders that were removed from the tree
+            Iterator<Node> nodes = listed.keySet().iterator();
+            while (nodes.hasNext()) {
+                Node node = nodes.next();
+                if (isDetached(node)) {
+                    nodes.remove();
+                    closed.remove(node);
+                    open.remove(node);
+                }
+            }
+        }
+        for (Node node : expired) {
+            synchronized (this) {
+                Long time = closed.get(node);
+                if (time == null || now - time < GRACE) {
+                    // Listed or closed again in the meantime
+                    continue;
+                }
+                closed.remove(node);
+            }
+            count.addAndGet(-prune(node));
+        }
+
+        int budget = haystack.getNodeBudget();
+        if (budget <= 0) {
+            return;
+        }
+        boolean recount;
+        synchronized (this) {
+            recount = now - counted >= RECOUNT;
+            if (recount) {
+                counted = now;
+            }
+        }
+        if (recount) {
+            count.set(count(haystack.getNode()));
+        }
+        if (count.get() <= budget) {
+            return;
+        }
+        List<Node> candidates;
+        synchronized (this) {
+            candidates = new ArrayList<>(listed.keySet());
+        }
+        for (Node node : candidates) {
+            if (count.get() <= budget) {
+                break;
+            }
+            synchronized (this) {
+                if (open.contains(node)) {
+                    continue;
+                }
+                closed.remove(node);
+            }
+            count.addAndGet(-prune(node));
+        }
+        if (count.get() > budget) {
+            LOGGER.debug("{} holds {} nodes, budget is {}",
+                         haystack.getNode().getName(), count.get(), budget);
+        }
+    }
+
+    /**
+     * Removes the tag and action nodes of the children of a closed folder.
+     *
+     * @return Number of removed nodes.
+     */
+    private int prune(Node event) {
+        Value lu = new Value(0);
+        lu.setSerializable(false);
+        event.setRoConfig("lu", lu);
+        LOGGER.debug("Pruning: {}", event.getPath());
+        Map<String, Node> children = event.getChildren();
+        if (children == null) {
+            return 0;
+        }
+        NavHelper helper = haystack.getNavHelper();
+        int removed = 0;
+        for (Node child : children.values()) {
+            if (child == null) {
+                continue;
+            }
+            Map<String, Node> nChildren = child.getChildren();
+            if (nChildren == null) {
+                continue;
+            }
+            boolean pruned = false;
+            for (Node n : nChildren.values()) {
+                if (n == null
+                        || (n.getValue() == null
+                        && n.getAction() == null)) {
+                    continue;
+                }
+                removed += removeNodes(n);
+                pruned = true;
+            }
+            if (pruned) {
+                // The tags are gone, the next nav has to rebuild them
+                helper.invalidate(child);
+                helper.release(child);
+            }
+        }
+        return removed;
+    }
+
+    private int removeNodes(Node node) {
+        if (node == null) {
+            return 0;
+        }
+        int removed = 0;
+        SubscriptionManager man = node.getLink().getSubscriptionManager();
+        Map<String, Node> children = node.getChildren();
+        if (children != null) {
+            for (Node n : children.values()) {
+                if (n != null && (n.getValue() == null)) {
+                    removed += removeNodes(n);
+                }
+            }
+        }
+        if (!man.hasValueSub(node)) {
+            LOGGER.debug("Removed: {}", node.getPath());
+            node.getParent().removeChild(node, false);
+            removed += 1 + count(node);
+        }
+        return removed;
+    }
+
+    private static boolean isDetached(Node node) {
+        Node parent = node.getParent();
+        return parent == null || parent.getChild(node.getName(), false) != node;
+    }
+
+    /**
+     * @return Number of nodes below the node.
+     */
+    public static int count(Node node) {
+        int count = 0;
+        Map<String, Node> children = node.getChildren();
+        if (children != null) {
+            for (Node n : children.values()) {
+                if (n != null) {
+                    count += 1 + count(n);
+                }
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,191 @@
+package org.dsa.iot.haystack.helpers;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import org.projecthaystack.HDict;
+import org.projecthaystack.HDictBuilder;
+import org.projecthaystack.HGrid;
+import org.projecthaystack.HGridBuilder;
+import org.projecthaystack.HRow;
+import org.projecthaystack.HStr;
+import org.projecthaystack.HVal;
+import org.projecthaystack.io.HZincReader;
+import org.projecthaystack.io.HZincWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stores the nav cache of a server in a single Zinc grid so the tree can
+ * be shown right after a restart. Each row carries the cache key of the
+ * nav it came from and only the tags needed to rebuild the folders. The
+ * grid meta holds the URL of the server, a snapshot of another URL is
+ * discarded.
+ */
+public class NavSnapshot {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(NavSnapshot.class);
+    private static final long FLUSH_INTERVAL = 60;
+    private static final String PARENT = "navParent";
+    private static final Set<String> KEY_TAGS = new HashSet<>(Arrays.asList(
+            "id", "navId", "navName", "dis", "equipRef", "siteRef",
+            "site", "equip", "point", "kind", "unit", "tz", "his",
+            "writable", "actions"
+    ));
+
+    private final File file;
+    private final NavCache cache;
+    private final ScheduledFuture<?> flushFuture;
+    private String url;
+    private boolean deleted;
+
+    public NavSnapshot(File file,
+                       String url,
+                       NavCache cache,
+                       ScheduledExecutorService executor) {
+        this.file = file;
+        this.url = url;
+        this.cache = cache;
+        load();
+        flushFuture = executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, FLUSH_INTERVAL, FLUSH_INTERVAL, TimeUnit.SECONDS);
+    }
+
+    public void close() {
+        flushFuture.cancel(false);
+        flush();
+    }
+
+    /**
+     * Discards the snapshot when the server points to another URL.
+     */
+    public synchronized void setUrl(String url) {
+        if (url.equals(this.url)) {
+            return;
+        }
+        this.url = url;
+        file.delete();
+    }
+
+    /**
+     * Deletes the snapshot, nothing is written afterwards.
+     */
+    public synchronized void delete() {
+        deleted = true;
+        flushFuture.cancel(false);
+        file.delete();
+    }
+
+    public synchronized void flush() {
+        if (deleted) {
+            return;
+        }
+        Map<String, HGrid> grids = cache.snapshotIfDirty();
+        if (grids == null) {
+            return;
+        }
+        List<HDict> rows = new ArrayList<>();
+        for (Map.Entry<String, HGrid> entry : grids.entrySet()) {
+            HStr parent = HStr.make(entry.getKey());
+            Iterator<?> it = entry.getValue().iterator();
+            while (it.hasNext()) {
+                HDictBuilder b = trim((HRow) it.next());
+                b.add(PARENT, parent);
+                rows.add(b.toDict());
+            }
+        }
+
+        File tmp = new File(file.getPath() + ".tmp");
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp))) {
+            HZincWriter writer = new HZincWriter(out);
+            HDict meta = new HDictBuilder().add("url", url).toDict();
+            writer.writeGrid(HGridBuilder.dictsToGrid(meta, rows.toArray(new HDict[rows.size()])));
+            writer.flush();
+        } catch (IOException | RuntimeException x) {
+            LOGGER.warn("Unable to write nav snapshot {}", file, x);
+            return;
+        }
+        try {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException x) {
+            LOGGER.warn("Unable to write nav snapshot {}", file, x);
+        }
+    }
+
+    private void load() {
+        if (!file.exists()) {
+            return;
+        }
+        Map<String, List<HDict>> navs = new LinkedHashMap<>();
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            HGrid grid = new HZincReader(in).readGrid();
+            HVal gridUrl = grid.meta().get("url", false);
+            if (!(gridUrl instanceof HStr) || !((HStr) gridUrl).val.equals(url)) {
+                LOGGER.info("Discarding nav snapshot {} of another URL", file);
+                in.close();
+                file.delete();
+                return;
+            }
+            Iterator<?> it = grid.iterator();
+            while (it.hasNext()) {
+                HRow row = (HRow) it.next();
+                HVal parent = row.get(PARENT, false);
+                if (!(parent instanceof HStr)) {
+                    continue;
+                }
+                String key = ((HStr) parent).val;
+                List<HDict> rows = navs.get(key);
+                if (rows == null) {
+                    rows = new ArrayList<>();
+                    navs.put(key, rows);
+                }
+                rows.add(trim(row).toDict());
+            }
+        } catch (IOException | RuntimeException x) {
+            LOGGER.warn("Unable to read nav snapshot {}", file, x);
+            return;
+        }
+        for (Map.Entry<String, List<HDict>> entry : navs.entrySet()) {
+            List<HDict> rows = entry.getValue();
+            HGrid grid = HGridBuilder.dictsToGrid(rows.toArray(new HDict[rows.size()]));
+            cache.load(entry.getKey(), grid);
+        }
+        LOGGER.info("Loaded {} navs from {}", navs.size(), file);
+    }
+
+    private static HDictBuilder trim(HRow row) {
+        HDictBuilder b = new HDictBuilder();
+        Iterator<?> it = row.iterator();
+        while (it.hasNext()) {
+            Map.Entry entry = (Map.Entry) it.next();
+            String name = (String) entry.getKey();
+            if (KEY_TAGS.contains(name)) {
+                b.add(name, (HVal) entry.getValue());
+            }
+        }
+        return b;
+    }
+}
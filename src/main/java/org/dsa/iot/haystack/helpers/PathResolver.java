@@ -0,0 +1,221 @@
+package org.dsa.iot.haystack.helpers;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.dsa.iot.dslink.node.Node;
+import org.dsa.iot.dslink.node.NodeBuilder;
+import org.dsa.iot.dslink.node.NodeManager;
+import org.dsa.iot.dslink.util.StringUtils;
+import org.dsa.iot.dslink.util.handler.Handler;
+import org.dsa.iot.haystack.Haystack;
+import org.dsa.iot.haystack.handlers.ListHandler;
+import org.projecthaystack.HDict;
+import org.projecthaystack.HGrid;
+import org.projecthaystack.HRef;
+import org.projecthaystack.HVal;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Rebuilds the node of a tag path without navigating to it. The name of a
+ * point node is its encoded id, so the entity can be read directly and
+ * the missing folders along the path created as placeholders. Listing a
+ * placeholder navigates its parent first, which gives it its navId.
+ */
+public class PathResolver {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PathResolver.class);
+
+    private final ConcurrentMap<String, CountDownLatch> inflight = new ConcurrentHashMap<>();
+    private final Set<Node> placeholders = Collections.synchronizedSet(
+            Collections.newSetFromMap(new WeakHashMap<Node, Boolean>()));
+    private final Haystack haystack;
+    private final Handler<Node> placeholderLister = new Handler<Node>() {
+        @Override
+        public void handle(final Node event) {
+            Node parent = event.getParent();
+            if (parent == null) {
+                return;
+            }
+            navigate(parent, new Runnable() {
+                @Override
+                public void run() {
+                    if (event.getRoConfig("navId") != null) {
+                        // The nav of the parent replaced this handler
+                        ListHandler.get().handle(event);
+                    }
+                }
+            });
+        }
+    };
+
+    public PathResolver(Haystack haystack) {
+        this.haystack = haystack;
+    }
+
+    /**
+     * @param path Path of a tag node, such as /server/site/equip/point/curVal
+     * @return The node of the path or null if it couldn't be resolved.
+     */
+    public Node resolve(NodeManager manager, String path) {
+        String[] split = NodeManager.splitPath(path);
+        if (split.length < 3) {
+            return null;
+        }
+        final HRef id;
+        try {
+            id = HRef.make(StringUtils.decodeName(split[split.length - 2]));
+        } catch (RuntimeException x) {
+            return null;
+        }
+
+        String pointPath = path.substring(0, path.lastIndexOf('/'));
+        Node point = manager.getNode(pointPath, false, false).getNode();
+        if (point != null && haystack.getNavHelper().materialize(point)) {
+            Node node = point.getChild(split[split.length - 1], false);
+            if (node != null) {
+                return node;
+            }
+        }
+
+        // Only one read per point, concurrent requests wait for it
+        CountDownLatch latch = new CountDownLatch(1);
+        CountDownLatch existing = inflight.putIfAbsent(pointPath, latch);
+        if (existing != null) {
+            await(existing);
+        } else {
+            try {
+                HDict dict = haystack.getEntityCache().get(id);
+                if (dict != null) {
+                    build(manager.getSuperRoot(), split, dict);
+                }
+            } catch (Exception x) {
+                LOGGER.debug("Unable to resolve {}", path, x);
+            } finally {
+                inflight.remove(pointPath, latch);
+                latch.countDown();
+            }
+        }
+        return manager.getNode(path, false, false).getNode();
+    }
+
+    private void build(Node superRoot, String[] split, HDict dict) {
+        Node node = superRoot.getChild(split[0], false);
+        if (node == null) {
+            return;
+        }
+        for (int i = 1; i < split.length - 1; i++) {
+            Node next = node.getChild(split[i], false);
+            if (next == null) {
+                NodeBuilder b = node.createChild(split[i], false);
+                b.setSerializable(false);
+                if (i < split.length - 2) {
+                    b.setHasChildren(true);
+                    b.getChild().getListener().setOnListHandler(placeholderLister);
+                    placeholders.add(b.getChild());
+                } else {
+                    HVal dis = dict.get("navName", false);
+                    if (dis == null) {
+                        dis = dict.get("dis", false);
+                    }
+                    if (dis != null) {
+                        b.setDisplayName(dis.toString());
+                    }
+                }
+                next = b.build();
+                haystack.getNavReaper().added(1);
+            }
+            node = next;
+        }
+        haystack.getNavHelper().populate(node, dict);
+    }
+
+    /**
+     * Navigates a folder and waits for its children to be built.
+     *
+     * @return Whether the nav completed in time.
+     */
+    public boolean list(Node folder, long timeout, TimeUnit unit) {
+        final CountDownLatch latch = new CountDownLatch(1);
+        navigate(folder, new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        });
+        try {
+            return latch.await(timeout, unit);
+        } catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Builds the children of a folder from the nav cache or the server,
+     * after the placeholders above it got their navId.
+     */
+    private void navigate(final Node folder, final Runnable then) {
+        if (folder != haystack.getNode() && folder.getRoConfig("navId") == null) {
+            Node parent = folder.getParent();
+            if (parent == null || !placeholders.contains(folder)) {
+                // Nothing to navigate
+                then.run();
+                return;
+            }
+            navigate(parent, new Runnable() {
+                @Override
+                public void run() {
+                    if (folder.getRoConfig("navId") != null) {
+                        navigate(folder, then);
+                    } else {
+                        then.run();
+                    }
+                }
+            });
+            return;
+        }
+        final HVal navId = ListHandler.getNavId(folder);
+        final NavCache cache = haystack.getNavCache();
+        final String key = NavCache.key(navId);
+        NavCache.Entry cached = cache.get(key);
+        if (cached != null && !cached.isStale()) {
+            haystack.getNavHelper().iterateNavChildren(cached.getGrid(), folder, false);
+            then.run();
+            return;
+        }
+        haystack.getTaskExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    haystack.nav(navId, new Handler<HGrid>() {
+                        @Override
+                        public void handle(HGrid event) {
+                            if (event == null) {
+                                return;
+                            }
+                            cache.put(key, event);
+                            haystack.getNavHelper().iterateNavChildren(event, folder, false);
+                            then.run();
+                        }
+                    });
+                } catch (Exception x) {
+                    LOGGER.debug("Unable to navigate {}", folder.getPath(), x);
+                }
+            }
+        });
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(60, TimeUnit.SECONDS);
+        } catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
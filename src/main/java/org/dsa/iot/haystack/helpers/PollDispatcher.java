@@ -0,0 +1,148 @@
+package org.dsa.iot.haystack.helpers;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.dsa.iot.dslink.util.handler.Handler;
+import org.projecthaystack.HGrid;
+import org.projecthaystack.HRow;
+import org.projecthaystack.HVal;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Applies the rows of a poll result in parallel. Rows are partitioned by
+ * the hash of their id so every point is always handled by the same
+ * partition, which keeps the updates of a single point in order.
+ */
+public class PollDispatcher {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PollDispatcher.class);
+    private static final AtomicInteger POOL_COUNT = new AtomicInteger();
+
+    private ExecutorService pool;
+    private int threads;
+
+    public PollDispatcher(int threads) {
+        setThreads(threads);
+    }
+
+    public synchronized int getThreads() {
+        return threads;
+    }
+
+    public synchronized void setThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Poll threads must be >= 1: " + threads);
+        }
+        if (this.threads == threads) {
+            return;
+        }
+        if (pool != null) {
+            pool.shutdown();
+            pool = null;
+        }
+        this.threads = threads;
+        if (threads > 1) {
+            // The dispatching thread handles one partition itself
+            pool = Executors.newFixedThreadPool(threads - 1, new PollThreadFactory());
+        }
+    }
+
+    public synchronized void destroy() {
+        if (pool != null) {
+            pool.shutdownNow();
+            pool = null;
+        }
+    }
+
+    /**
+     * Applies every row of the grid to the handler and returns once
+     * all of them have been handled.
+     */
+    public void dispatch(HGrid grid, final Handler<HRow> handler) {
+        ExecutorService pool;
+        int threads;
+        synchronized (this) {
+            pool = this.pool;
+            threads = this.threads;
+        }
+        if (pool == null || grid.numRows() < threads * 2) {
+            apply(grid.iterator(), handler);
+            return;
+        }
+
+        List<List<HRow>> partitions = new ArrayList<>(threads);
+        for (int i = 0; i < threads; i++) {
+            partitions.add(new ArrayList<HRow>(grid.numRows() / threads + 1));
+        }
+        Iterator<?> it = grid.iterator();
+        while (it.hasNext()) {
+            HRow row = (HRow) it.next();
+            partitions.get(partition(row, threads)).add(row);
+        }
+
+        final CountDownLatch latch = new CountDownLatch(threads - 1);
+        for (int i = 1; i < threads; i++) {
+            final List<HRow> rows = partitions.get(i);
+            try {
+                pool.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            apply(rows.iterator(), handler);
+                        } finally {
+                            latch.countDown();
+                        }
+                    }
+                });
+            } catch (RuntimeException x) {
+                // Pool was resized or destroyed, handle it here instead
+                apply(rows.iterator(), handler);
+                latch.countDown();
+            }
+        }
+        apply(partitions.get(0).iterator(), handler);
+        try {
+            latch.await();
+        } catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void apply(Iterator<?> it, Handler<HRow> handler) {
+        while (it.hasNext()) {
+            HRow row = (HRow) it.next();
+            try {
+                handler.handle(row);
+            } catch (RuntimeException x) {
+                LOGGER.error("Failed to apply poll row", x);
+            }
+        }
+    }
+
+    private static int partition(HRow row, int threads) {
+        HVal id = row.get("id", false);
+        int hash = id != null ? id.hashCode() : 0;
+        return (hash & Integer.MAX_VALUE) % threads;
+    }
+
+    private static class PollThreadFactory implements ThreadFactory {
+
+        private final int pool = POOL_COUNT.incrementAndGet();
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r);
+            t.setName("haystack-poll-" + pool + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
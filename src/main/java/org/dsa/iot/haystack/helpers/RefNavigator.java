@@ -0,0 +1,256 @@
+package org.dsa.iot.haystack.helpers;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.dsa.iot.dslink.util.handler.Handler;
+import org.dsa.iot.haystack.Haystack;
+import org.projecthaystack.HDict;
+import org.projecthaystack.HDictBuilder;
+import org.projecthaystack.HGrid;
+import org.projecthaystack.HGridBuilder;
+import org.projecthaystack.HRef;
+import org.projecthaystack.HRow;
+import org.projecthaystack.HStr;
+import org.projecthaystack.HVal;
+import org.projecthaystack.client.HClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Builds nav grids from the site, equip and point records of a server
+ * instead of calling nav. The records are read with three bulk reads and
+ * grouped by their siteRef and equipRef, the navId of a folder is the id
+ * of its site or equip. Records without a known parent are listed in an
+ * Unassigned folder.
+ */
+public class RefNavigator {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RefNavigator.class);
+    private static final long TTL = TimeUnit.MINUTES.toMillis(5);
+    private static final String ROOT = "";
+    private static final String UNASSIGNED = "unassigned";
+
+    private final Haystack haystack;
+    // Listings waiting for the first model
+    private final List<Handler<Map<String, List<HDict>>>> waiting = new ArrayList<>();
+    private Map<String, List<HDict>> children;
+    private long loaded;
+    private boolean loading;
+    private int generation;
+
+    public RefNavigator(Haystack haystack) {
+        this.haystack = haystack;
+    }
+
+    /**
+     * Lists the children of a folder. An expired model is still used while
+     * a single background load replaces it, only the first listings wait
+     * for the records to be read.
+     */
+    public void nav(final HVal navId, final Handler<HGrid> onComplete) {
+        Handler<Map<String, List<HDict>>> handler = new Handler<Map<String, List<HDict>>>() {
+            @Override
+            public void handle(Map<String, List<HDict>> model) {
+                String key = ROOT;
+                if (navId instanceof HRef) {
+                    key = ((HRef) navId).val;
+                } else if (navId instanceof HStr) {
+                    key = ((HStr) navId).val;
+                } else if (navId != null) {
+                    key = navId.toString();
+                }
+                List<HDict> rows = model.get(key);
+                HGrid grid = HGrid.EMPTY;
+                if (rows != null) {
+                    grid = HGridBuilder.dictsToGrid(rows.toArray(new HDict[rows.size()]));
+                }
+                if (onComplete != null) {
+                    onComplete.handle(grid);
+                }
+            }
+        };
+        Map<String, List<HDict>> model;
+        boolean load;
+        synchronized (this) {
+            model = children;
+            if (model == null) {
+                waiting.add(handler);
+            }
+            load = !loading && (model == null
+                    || System.currentTimeMillis() - loaded >= TTL);
+            if (load) {
+                loading = true;
+            }
+        }
+        if (load) {
+            haystack.getTaskExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    load();
+                }
+            });
+        }
+        if (model != null) {
+            handler.handle(model);
+        }
+    }
+
+    public synchronized void clear() {
+        children = null;
+        generation++;
+    }
+
+    private void load() {
+        final int gen;
+        synchronized (this) {
+            gen = generation;
+        }
+        final AtomicBoolean done = new AtomicBoolean();
+        try {
+            haystack.getConnHelper().getClient(new StateHandler<HClient>() {
+                @Override
+                public void handle(HClient event) {
+                    Map<String, List<HDict>> model = null;
+                    try {
+                        if (event != null) {
+                            model = new HashMap<>();
+                            build(event, model);
+                        }
+                    } catch (Exception x) {
+                        model = null;
+                        LOGGER.warn("Unable to read the records of {}",
+                                    haystack.getNode().getName(), x);
+                    }
+                    if (!done.getAndSet(true)) {
+                        loaded(gen, model);
+                    }
+                }
+            });
+        } catch (Exception x) {
+            LOGGER.warn("Unable to read the records of {}",
+                        haystack.getNode().getName(), x);
+            if (!done.getAndSet(true)) {
+                loaded(gen, null);
+            }
+        }
+    }
+
+    private void loaded(int gen, Map<String, List<HDict>> model) {
+        List<Handler<Map<String, List<HDict>>>> handlers;
+        synchronized (this) {
+            loading = false;
+            if (model != null && gen == generation) {
+                children = model;
+                loaded = System.currentTimeMillis();
+            } else if (children != null) {
+                // Keep serving the previous model
+                return;
+            }
+            handlers = new ArrayList<>(waiting);
+            waiting.clear();
+        }
+        if (model == null) {
+            model = Collections.emptyMap();
+        }
+        for (Handler<Map<String, List<HDict>>> handler : handlers) {
+            handler.handle(model);
+        }
+    }
+
+    private void build(HClient client, Map<String, List<HDict>> model) {
+        long start = System.currentTimeMillis();
+        HGrid sites = client.readAll("site");
+        HGrid equips = client.readAll("equip");
+        HGrid points = client.readAll("point");
+
+        Set<String> ids = new HashSet<>();
+        Iterator<?> it = sites.iterator();
+        while (it.hasNext()) {
+            HRow row = (HRow) it.next();
+            HRef id = row.id();
+            ids.add(id.val);
+            add(model, ROOT, new HDictBuilder().add(row).add("navId", id).toDict());
+        }
+        it = equips.iterator();
+        while (it.hasNext()) {
+            ids.add(((HRow) it.next()).id().val);
+        }
+
+        List<HDict> unassigned = new ArrayList<>();
+        it = equips.iterator();
+        while (it.hasNext()) {
+            HRow row = (HRow) it.next();
+            HRef id = row.id();
+            HDict dict = new HDictBuilder().add(row).add("navId", id).toDict();
+            String parent = getParent(row, ids);
+            if (parent != null) {
+                add(model, parent, dict);
+            } else {
+                unassigned.add(dict);
+            }
+        }
+
+        it = points.iterator();
+        while (it.hasNext()) {
+            HRow row = (HRow) it.next();
+            String parent = getParent(row, ids);
+            if (parent != null) {
+                add(model, parent, row);
+            } else {
+                unassigned.add(row);
+            }
+        }
+
+        if (!unassigned.isEmpty()) {
+            model.put(UNASSIGNED, unassigned);
+            HDictBuilder b = new HDictBuilder();
+            b.add("dis", "Unassigned");
+            b.add("navId", UNASSIGNED);
+            add(model, ROOT, b.toDict());
+        }
+
+        LOGGER.info("Read {} sites, {} equips and {} points of {} in {}ms",
+                    sites.numRows(), equips.numRows(), points.numRows(),
+                    haystack.getNode().getName(), System.currentTimeMillis() - start);
+    }
+
+    /**
+     * @return The equip or site the record belongs to, or null if neither
+     * was read.
+     */
+    private static String getParent(HDict row, Set<String> ids) {
+        String parent = getRef(row, "equipRef");
+        if (parent == null || !ids.contains(parent)) {
+            parent = getRef(row, "siteRef");
+        }
+        if (parent == null || !ids.contains(parent)) {
+            return null;
+        }
+        return parent;
+    }
+
+    private static String getRef(HDict row, String tag) {
+        HVal ref = row.get(tag, false);
+        if (ref instanceof HRef) {
+            return ((HRef) ref).val;
+        }
+        return null;
+    }
+
+    private static void add(Map<String, List<HDict>> model, String parent, HDict row) {
+        List<HDict> rows = model.get(parent);
+        if (rows == null) {
+            rows = new ArrayList<>();
+            model.put(parent, rows);
+        }
+        rows.add(row);
+    }
+}
@@ -57,6 +57,14 @@ public class SubscriptionController {
         }
     }
 
+    public Node getNode() {
+        return node;
+    }
+
+    synchronized public boolean hasSubscriptions() {
+        return !subscribedChildren.isEmpty();
+    }
+
     synchronized public void setId(HRef id) {
         this.id = id;
     }
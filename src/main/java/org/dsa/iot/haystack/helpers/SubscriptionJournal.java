@@ -0,0 +1,219 @@
+package org.dsa.iot.haystack.helpers;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only journal of the subscribed ids of a server. Every change is
+ * appended as a single line, and the journal is rewritten with only the live
+ * entries once enough stale records have built up. The first line holds the
+ * URL of the server, a journal of another URL is discarded.
+ */
+public class SubscriptionJournal {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SubscriptionJournal.class);
+    private static final int MIN_COMPACT = 1024;
+    private static final String URL_HEADER = "#url\t";
+
+    private final Set<String> entries = new LinkedHashSet<>();
+    private final File file;
+    private final ScheduledExecutorService executor;
+    private ScheduledFuture<?> flushFuture;
+    private Writer out;
+    private int records;
+    private String url;
+    private boolean deleted;
+
+    public SubscriptionJournal(File file, String url, ScheduledExecutorService executor) {
+        this.file = file;
+        this.url = url;
+        this.executor = executor;
+    }
+
+    /**
+     * Replays the journal from disk.
+     *
+     * @return The subscribed ids.
+     */
+    public synchronized Set<String> load() {
+        entries.clear();
+        records = 0;
+        if (file.exists()) {
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(file), StandardCharsets.UTF_8))) {
+                String line = in.readLine();
+                if (line == null || !line.equals(URL_HEADER + url)) {
+                    LOGGER.info("Discarding subscription journal {} of another URL", file);
+                    in.close();
+                    file.delete();
+                    return new LinkedHashSet<>();
+                }
+                while ((line = in.readLine()) != null) {
+                    if (line.length() < 2) {
+                        continue;
+                    }
+                    records++;
+                    char op = line.charAt(0);
+                    if (op == '+') {
+                        entries.add(line.substring(1));
+                    } else if (op == '-') {
+                        entries.remove(line.substring(1));
+                    }
+                }
+            } catch (IOException x) {
+                LOGGER.warn("Unable to read subscription journal {}", file, x);
+            }
+            if (records > entries.size()) {
+                compact();
+            }
+        }
+        return new LinkedHashSet<>(entries);
+    }
+
+    public synchronized void add(String id) {
+        if (entries.add(id)) {
+            append('+' + id);
+        }
+    }
+
+    public synchronized void remove(String id) {
+        if (entries.remove(id)) {
+            append('-' + id);
+        }
+    }
+
+    /**
+     * Discards the journal when the server points to another URL.
+     */
+    public synchronized void setUrl(String url) {
+        if (url.equals(this.url)) {
+            return;
+        }
+        this.url = url;
+        clear();
+    }
+
+    /**
+     * Closes and deletes the journal, nothing is written afterwards.
+     */
+    public synchronized void delete() {
+        deleted = true;
+        clear();
+    }
+
+    private void clear() {
+        if (flushFuture != null) {
+            flushFuture.cancel(false);
+            flushFuture = null;
+        }
+        closeWriter();
+        entries.clear();
+        records = 0;
+        file.delete();
+    }
+
+    public synchronized void flush() {
+        if (flushFuture != null) {
+            flushFuture.cancel(false);
+            flushFuture = null;
+        }
+        if (out != null) {
+            try {
+                out.flush();
+            } catch (IOException x) {
+                LOGGER.warn("Unable to write subscription journal {}", file, x);
+                closeWriter();
+            }
+        }
+    }
+
+    public synchronized void close() {
+        flush();
+        closeWriter();
+    }
+
+    private void append(String line) {
+        if (deleted) {
+            return;
+        }
+        try {
+            if (out == null) {
+                boolean empty = file.length() == 0;
+                out = new BufferedWriter(new OutputStreamWriter(
+                        new FileOutputStream(file, true), StandardCharsets.UTF_8));
+                if (empty) {
+                    out.write(URL_HEADER + url);
+                    out.write('\n');
+                }
+            }
+            out.write(line);
+            out.write('\n');
+        } catch (IOException x) {
+            LOGGER.warn("Unable to write subscription journal {}", file, x);
+            closeWriter();
+            return;
+        }
+        if (++records > (entries.size() * 2) + MIN_COMPACT) {
+            compact();
+        } else if (flushFuture == null) {
+            flushFuture = executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    flush();
+                }
+            }, 1, TimeUnit.SECONDS);
+        }
+    }
+
+    private void compact() {
+        closeWriter();
+        File tmp = new File(file.getPath() + ".tmp");
+        try (Writer w = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(tmp), StandardCharsets.UTF_8))) {
+            w.write(URL_HEADER + url);
+            w.write('\n');
+            for (String id : entries) {
+                w.write('+');
+                w.write(id);
+                w.write('\n');
+            }
+        } catch (IOException x) {
+            LOGGER.warn("Unable to compact subscription journal {}", file, x);
+            return;
+        }
+        try {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+            records = entries.size();
+        } catch (IOException x) {
+            LOGGER.warn("Unable to compact subscription journal {}", file, x);
+        }
+    }
+
+    private void closeWriter() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException ignored) {
+            }
+            out = null;
+        }
+    }
+}
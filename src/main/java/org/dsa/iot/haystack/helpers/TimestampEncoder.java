@@ -0,0 +1,186 @@
+package org.dsa.iot.haystack.helpers;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
+import java.util.Calendar;
+import java.util.TimeZone;
+import org.dsa.iot.dslink.util.TimeUtils;
+import org.projecthaystack.HDate;
+import org.projecthaystack.HDateTime;
+import org.projecthaystack.HTime;
+
+/**
+ * Encodes timestamps of one time zone in the format of
+ * {@link TimeUtils#encode(Calendar, boolean, StringBuilder)}. The date of
+ * the last day and the zone offset of the last DST period are cached, so
+ * consecutive samples only format their time of day. An encoder is not
+ * thread safe.
+ */
+public class TimestampEncoder {
+
+    private static final long DAY = 86400000L;
+    // Earlier offsets of the calendar don't always match the zone rules,
+    // so those dates are left to it
+    private static final long MIN_MILLIS = -2208988800000L; // 1900-01-01
+    // Leaves room for the zone offset to stay within four digit years
+    private static final long MAX_MILLIS = 253402128000000L; // 9999-12-30
+
+    private final TimeZone tz;
+    private final ZoneRules rules;
+    private final char[] chars = new char[29];
+    private Calendar calendar;
+
+    private long periodStart = 1;
+    private long periodEnd;
+    private int offset;
+    private char[] zone;
+
+    private long day = Long.MIN_VALUE;
+    private int dateLen;
+
+    public TimestampEncoder(TimeZone tz) {
+        this.tz = tz;
+        ZoneRules rules = null;
+        try {
+            rules = tz.toZoneId().getRules();
+        } catch (RuntimeException ignored) {
+            // Custom zones fall back to looking up every offset
+        }
+        this.rules = rules;
+    }
+
+    public String encode(long millis) {
+        if (millis < MIN_MILLIS || millis >= MAX_MILLIS) {
+            return encodeSlow(millis);
+        }
+        if (millis < periodStart || millis >= periodEnd) {
+            updateOffset(millis);
+        }
+        long local = millis + offset;
+        long d = Math.floorDiv(local, DAY);
+        if (d != day) {
+            updateDate(d);
+        }
+        int len = dateLen;
+        int ms = (int) (local - d * DAY);
+        len = put2(chars, len, ms / 3600000);
+        chars[len++] = ':';
+        len = put2(chars, len, ms / 60000 % 60);
+        chars[len++] = ':';
+        len = put2(chars, len, ms / 1000 % 60);
+        chars[len++] = '.';
+        len = put3(chars, len, ms % 1000);
+        System.arraycopy(zone, 0, chars, len, zone.length);
+        return new String(chars, 0, len + zone.length);
+    }
+
+    private void updateOffset(long millis) {
+        offset = tz.getOffset(millis);
+        periodStart = millis;
+        periodEnd = millis + 1;
+        if (rules != null) {
+            Instant instant = Instant.ofEpochMilli(millis);
+            // Only trusted when the zone rules agree with the calendar
+            if (rules.getOffset(instant).getTotalSeconds() * 1000 == offset) {
+                ZoneOffsetTransition prev = rules.previousTransition(instant.plusMillis(1));
+                ZoneOffsetTransition next = rules.nextTransition(instant);
+                periodStart = prev == null ? Long.MIN_VALUE : prev.toEpochSecond() * 1000;
+                periodEnd = next == null ? Long.MAX_VALUE : next.toEpochSecond() * 1000;
+            }
+        }
+        StringBuilder buf = new StringBuilder(6);
+        appendOffset(buf, offset, 60000, ':');
+        zone = buf.toString().toCharArray();
+    }
+
+    private void updateDate(long d) {
+        LocalDate date = LocalDate.ofEpochDay(d);
+        int len = put2(chars, 0, date.getYear() / 100);
+        len = put2(chars, len, date.getYear() % 100);
+        chars[len++] = '-';
+        len = put2(chars, len, date.getMonthValue());
+        chars[len++] = '-';
+        len = put2(chars, len, date.getDayOfMonth());
+        chars[len++] = 'T';
+        dateLen = len;
+        day = d;
+    }
+
+    private String encodeSlow(long millis) {
+        if (calendar == null) {
+            calendar = Calendar.getInstance(tz);
+        }
+        calendar.setTimeInMillis(millis);
+        return TimeUtils.encode(calendar, true, new StringBuilder()).toString();
+    }
+
+    /**
+     * Appends a date time in the format of its date and time zinc followed
+     * by Z or an offset without a colon.
+     */
+    public static StringBuilder appendZinc(HDateTime dt, StringBuilder buf) {
+        HDate date = dt.date;
+        HTime time = dt.time;
+        buf.append(date.year).append('-');
+        append2(buf, date.month).append('-');
+        append2(buf, date.day).append('T');
+        append2(buf, time.hour).append(':');
+        append2(buf, time.min).append(':');
+        append2(buf, time.sec);
+        if (time.ms != 0) {
+            buf.append('.');
+            if (time.ms < 100) {
+                buf.append('0');
+            }
+            append2(buf, time.ms);
+        }
+        return appendOffset(buf, dt.tzOffset, 60, (char) 0);
+    }
+
+    /**
+     * Appends Z for a zero offset, otherwise the sign, hours, separator
+     * when not 0 and minutes.
+     *
+     * @param perMinute Units of the offset in a minute.
+     */
+    private static StringBuilder appendOffset(StringBuilder buf,
+                                              int offset,
+                                              int perMinute,
+                                              char sep) {
+        if (offset == 0) {
+            return buf.append('Z');
+        }
+        if (offset < 0) {
+            buf.append('-');
+            offset = -offset;
+        } else {
+            buf.append('+');
+        }
+        int minutes = offset / perMinute;
+        append2(buf, minutes / 60);
+        if (sep != 0) {
+            buf.append(sep);
+        }
+        return append2(buf, minutes % 60);
+    }
+
+    private static StringBuilder append2(StringBuilder buf, int i) {
+        if (i < 10) {
+            buf.append('0');
+        }
+        return buf.append(i);
+    }
+
+    private static int put2(char[] chars, int pos, int i) {
+        chars[pos] = (char) ('0' + i / 10);
+        chars[pos + 1] = (char) ('0' + i % 10);
+        return pos + 2;
+    }
+
+    private static int put3(char[] chars, int pos, int i) {
+        chars[pos] = (char) ('0' + i / 100);
+        return put2(chars, pos + 1, i % 100);
+    }
+}
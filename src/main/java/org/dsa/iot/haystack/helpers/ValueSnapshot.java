@@ -0,0 +1,180 @@
+package org.dsa.iot.haystack.helpers;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import org.projecthaystack.HDict;
+import org.projecthaystack.HDictBuilder;
+import org.projecthaystack.HGrid;
+import org.projecthaystack.HGridBuilder;
+import org.projecthaystack.HRow;
+import org.projecthaystack.HStr;
+import org.projecthaystack.HVal;
+import org.projecthaystack.io.HZincReader;
+import org.projecthaystack.io.HZincWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Last known tag values of the subscribed points of a server. The values
+ * are kept in memory and periodically flushed to a Zinc file, so they can
+ * be shown right after a restart until live data arrives. The grid meta
+ * holds the URL of the server, a snapshot of another URL is discarded.
+ */
+public class ValueSnapshot {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ValueSnapshot.class);
+    private static final long FLUSH_INTERVAL = 30;
+
+    private final Map<String, HDict> values = new ConcurrentHashMap<>();
+    private final Set<String> loaded = Collections.newSetFromMap(
+            new ConcurrentHashMap<String, Boolean>());
+    private final File file;
+    private final ScheduledFuture<?> flushFuture;
+    private volatile boolean dirty;
+    private String url;
+    private boolean deleted;
+
+    public ValueSnapshot(File file, String url, ScheduledExecutorService executor) {
+        this.file = file;
+        this.url = url;
+        load();
+        flushFuture = executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, FLUSH_INTERVAL, FLUSH_INTERVAL, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @return The values loaded from disk, as long as no live values have
+     * been received for the id since startup.
+     */
+    public HDict getStale(String id) {
+        if (!loaded.contains(id)) {
+            return null;
+        }
+        return values.get(id);
+    }
+
+    public void put(String id, HDict row) {
+        loaded.remove(id);
+        values.put(id, new HDictBuilder().add(row).toDict());
+        dirty = true;
+    }
+
+    public void remove(String id) {
+        loaded.remove(id);
+        if (values.remove(id) != null) {
+            dirty = true;
+        }
+    }
+
+    public void close() {
+        flushFuture.cancel(false);
+        flush();
+    }
+
+    /**
+     * Discards the snapshot when the server points to another URL.
+     */
+    public synchronized void setUrl(String url) {
+        if (url.equals(this.url)) {
+            return;
+        }
+        this.url = url;
+        clear();
+    }
+
+    /**
+     * Deletes the snapshot, nothing is written afterwards.
+     */
+    public synchronized void delete() {
+        deleted = true;
+        flushFuture.cancel(false);
+        clear();
+    }
+
+    private void clear() {
+        values.clear();
+        loaded.clear();
+        dirty = false;
+        file.delete();
+    }
+
+    public synchronized void flush() {
+        if (!dirty || deleted) {
+            return;
+        }
+        dirty = false;
+        HDict[] dicts = values.values().toArray(new HDict[0]);
+        HDict meta = new HDictBuilder().add("url", url).toDict();
+        File tmp = new File(file.getPath() + ".tmp");
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp))) {
+            HZincWriter writer = new HZincWriter(out);
+            writer.writeGrid(HGridBuilder.dictsToGrid(meta, dicts));
+            writer.flush();
+        } catch (IOException | RuntimeException x) {
+            LOGGER.warn("Unable to write value snapshot {}", file, x);
+            return;
+        }
+        try {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException x) {
+            LOGGER.warn("Unable to write value snapshot {}", file, x);
+        }
+    }
+
+    private void load() {
+        if (!file.exists()) {
+            return;
+        }
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            HGrid grid = new HZincReader(in).readGrid();
+            HVal gridUrl = grid.meta().get("url", false);
+            if (!(gridUrl instanceof HStr) || !((HStr) gridUrl).val.equals(url)) {
+                LOGGER.info("Discarding value snapshot {} of another URL", file);
+                in.close();
+                file.delete();
+                return;
+            }
+            Iterator<?> it = grid.iterator();
+            while (it.hasNext()) {
+                HRow row = (HRow) it.next();
+                HVal id = row.get("id", false);
+                if (id == null) {
+                    continue;
+                }
+                // Drop the empty cells of columns from other points
+                HDictBuilder b = new HDictBuilder();
+                Iterator<?> cells = row.iterator();
+                while (cells.hasNext()) {
+                    Map.Entry entry = (Map.Entry) cells.next();
+                    b.add((String) entry.getKey(), (HVal) entry.getValue());
+                }
+                values.put(id.toString(), b.toDict());
+                loaded.add(id.toString());
+            }
+            LOGGER.info("Loaded {} values from {}", values.size(), file);
+        } catch (IOException | RuntimeException x) {
+            LOGGER.warn("Unable to read value snapshot {}", file, x);
+        }
+    }
+}